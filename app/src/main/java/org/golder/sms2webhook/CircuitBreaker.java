@@ -0,0 +1,65 @@
+package org.golder.sms2webhook;
+
+import android.util.Log;
+
+/**
+ * Circuit breaker for a single run against the webhook. After too many
+ * consecutive failed uploads the endpoint is considered down, the breaker
+ * opens, and the run should stop and reschedule itself after
+ * {@link #getRetryDelay()}.
+ */
+public class CircuitBreaker {
+
+    private static final String TAG = "breaker";
+
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long MIN_OPEN_DELAY = 5 * 60 * 1000; // milliseconds
+
+    private int consecutiveFailures = 0;
+    private long retryDelay = MIN_OPEN_DELAY;
+    private volatile boolean open = false;
+
+    /**
+     * Records a successful upload, which resets the failure count.
+     */
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Records an upload that failed after retries.
+     *
+     * @param retryAfter The delay requested by the server in milliseconds, or -1 if none.
+     */
+    public synchronized void recordFailure(long retryAfter) {
+        consecutiveFailures += 1;
+        retryDelay = Math.max(retryDelay, retryAfter);
+        if (!open && (consecutiveFailures >= FAILURE_THRESHOLD || retryAfter > RetryPolicy.MAX_IN_RUN_WAIT)) {
+            Log.w(TAG, "Opening circuit breaker after " + consecutiveFailures + " failures, retrying in " + retryDelay + "ms");
+            open = true;
+        }
+    }
+
+    /**
+     * @return True once the endpoint is considered down for the rest of the run.
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return How long to wait before trying the endpoint again, in milliseconds.
+     */
+    public synchronized long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * Cause of the failure reported for uploads refused while the breaker is open.
+     */
+    public static class OpenException extends Exception {
+        public OpenException() {
+            super("Circuit breaker open");
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.golder.sms2webhook;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A webhook that messages are forwarded to.
+ *
+ * The primary destination is the "Webhook URL" setting. Further destinations
+ * are listed one per line in the "Additional webhooks" setting, each
+ * optionally followed by its own limits, e.g.
+ * {@code https://example.com/hook concurrency=2 rate=5}.
+ *
+ * Every destination has its own {@link DigestCache}, recording which messages
+ * it has acknowledged and how far through the inbox it has got, and its own
+ * {@link Outbox}, circuit breaker and upload threads. A slow or unreachable
+ * destination therefore falls behind on its own and catches up later, without
+ * holding up delivery to the others. The primary destination keeps the file
+ * names used before there were several, so existing caches stay valid.
+ */
+public class Destination {
+
+    private static final String TAG = "destination";
+
+    // Identifies the primary destination's state
+    static final String PRIMARY_ID = DigestCache.PRIMARY_ID;
+
+    // Setting holding the additional webhooks, one per line
+    static final String PREF_EXTRA_WEBHOOKS = "extra_webhooks";
+
+    // Destinations are tracked in an int bitmask per message
+    static final int MAX_DESTINATIONS = 8;
+
+    static final int DEFAULT_CONCURRENCY = 4;
+    static final int MAX_CONCURRENCY = 8;
+
+    private final String id;
+    private final String name;
+    private final String url;
+    private final int concurrency;
+    private final long permitInterval; // nanoseconds between requests, 0 for no limit
+
+    // Earliest System.nanoTime() at which the next request may start
+    private long nextPermit;
+
+    private Destination(String id, String name, String url, int concurrency, double rateLimit) {
+        this.id = id;
+        this.name = name;
+        this.url = url;
+        this.concurrency = Math.max(1, Math.min(concurrency, MAX_CONCURRENCY));
+        this.permitInterval = rateLimit > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rateLimit) : 0;
+    }
+
+    /**
+     * Reads the configured destinations, primary first. Rate limits apply to
+     * the returned instances, so callers should share them for a whole run.
+     *
+     * @param prefs The app's settings.
+     * @return The destinations, or an empty list if no webhook URL is set.
+     */
+    static List<Destination> fromSettings(SharedPreferences prefs) {
+        String primaryUrl = prefs.getString("webhook_url", "").trim();
+        if (primaryUrl.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Destination> destinations = new ArrayList<>();
+        destinations.add(new Destination(PRIMARY_ID, "Webhook", primaryUrl,
+                SmsStoreWorker.getIntPreference(prefs, SmsStoreWorker.PREF_UPLOAD_CONCURRENCY, DEFAULT_CONCURRENCY), 0));
+
+        List<String> seen = new ArrayList<>();
+        seen.add(primaryUrl);
+        for (String line : prefs.getString(PREF_EXTRA_WEBHOOKS, "").split("\n")) {
+            String[] words = line.trim().split("\\s+");
+            if (words[0].isEmpty() || seen.contains(words[0])) {
+                continue;
+            }
+            if (destinations.size() == MAX_DESTINATIONS) {
+                Log.w(TAG, "Ignoring webhooks beyond the first " + MAX_DESTINATIONS);
+                break;
+            }
+            int concurrency = DEFAULT_CONCURRENCY;
+            double rate = 0;
+            for (int i = 1; i < words.length; i++) {
+                try {
+                    if (words[i].startsWith("concurrency=")) {
+                        concurrency = Integer.parseInt(words[i].substring("concurrency=".length()));
+                    } else if (words[i].startsWith("rate=")) {
+                        rate = Double.parseDouble(words[i].substring("rate=".length()));
+                    } else {
+                        Log.w(TAG, "Ignoring unknown webhook option '" + words[i] + "'");
+                    }
+                } catch (NumberFormatException nfe) {
+                    Log.w(TAG, "Ignoring invalid webhook option '" + words[i] + "'");
+                }
+            }
+            seen.add(words[0]);
+            destinations.add(new Destination(idFor(words[0]), "Webhook " + (destinations.size() + 1), words[0],
+                    concurrency, rate));
+        }
+        return destinations;
+    }
+
+    // Derived from the URL, so a destination keeps its state however the list is reordered
+    private static String idFor(String url) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            return MessageFingerprinter.toHex(hash).substring(0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * @return The identifier of the destination's state.
+     */
+    String getId() {
+        return id;
+    }
+
+    /**
+     * @return The webhook URL.
+     */
+    String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return The number of uploads to run at once.
+     */
+    int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return True for the destination set as "Webhook URL".
+     */
+    boolean isPrimary() {
+        return PRIMARY_ID.equals(id);
+    }
+
+    /**
+     * Returns the name of a file holding this destination's state.
+     *
+     * @param base The file name used for the primary destination.
+     * @return The file name.
+     */
+    String fileName(String base) {
+        return isPrimary() ? base : base + "-" + id;
+    }
+
+    /**
+     * Waits until the destination's rate limit allows another request.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    void acquirePermit() throws InterruptedException {
+        if (permitInterval == 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, nextPermit);
+            nextPermit = start + permitInterval;
+            wait = start - now;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    // The name rather than the URL, which may carry credentials
+    @Override
+    public String toString() {
+        return name;
+    }
+}
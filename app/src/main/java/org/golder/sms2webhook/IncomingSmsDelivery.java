@@ -0,0 +1,301 @@
+package org.golder.sms2webhook;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.telephony.SmsMessage;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import androidx.preference.PreferenceManager;
+
+/**
+ * Real-time delivery of messages straight from the SMS_RECEIVED broadcast,
+ * without waiting for them to reach the inbox and without scanning the inbox.
+ *
+ * Each instance is one logical message, reassembled from the parts of a
+ * concatenated SMS. Payloads are encoded once, through the same
+ * {@link MessageProjection} as the inbox scan, journalled in the {@link Outbox}
+ * of each {@link Destination} without them and uploaded once to each; if an
+ * upload fails the outbox drain worker retries it.
+ * Messages waiting for the delivery thread are coalesced, so a burst of
+ * broadcasts costs one batch upload when a batched delivery mode is set.
+ *
+ * The inbox row's own {@code date} is only assigned when the SMS app stores
+ * the message, so the cache key here uses the sender's timestamp, which the
+ * inbox keeps as {@code date_sent}; the inbox scan checks that key too and
+ * re-keys the message rather than uploading it again.
+ */
+class IncomingSmsDelivery {
+
+    private static final String TAG = "incomingsms";
+
+    // Deliveries run one at a time, in the order messages arrived
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, "incoming-sms"));
+
+    // Messages received but not yet taken by the delivery thread
+    private static final Queue<IncomingSmsDelivery> queue = new ConcurrentLinkedQueue<>();
+
+    private final String address;
+    private final String body;
+    private final long date;
+    private final long dateSent;
+    private final int protocol;
+    private final boolean replyPathPresent;
+    private final String serviceCenter;
+    private final int subscriptionId;
+
+    // Shared by every destination: the key is set on first lookup, the payload when first journalled
+    private String objectName;
+    private byte[] payload;
+
+    /**
+     * Reassembles a message from its parts, as the SMS app does when storing it.
+     *
+     * @param parts          The parts of one message from one sender, in order.
+     * @param date           When the message was received.
+     * @param subscriptionId The SIM subscription it arrived on, or -1 if unknown.
+     */
+    IncomingSmsDelivery(List<SmsMessage> parts, long date, int subscriptionId) {
+        SmsMessage first = parts.get(0);
+        StringBuilder text = new StringBuilder();
+        for (SmsMessage part : parts) {
+            String partBody = part.getDisplayMessageBody();
+            if (partBody != null) {
+                text.append(partBody);
+            }
+        }
+        this.address = first.getDisplayOriginatingAddress();
+        this.body = text.toString();
+        this.date = date;
+        this.dateSent = first.getTimestampMillis();
+        this.protocol = first.getProtocolIdentifier();
+        this.replyPathPresent = first.isReplyPathPresent();
+        this.serviceCenter = first.getServiceCenterAddress();
+        this.subscriptionId = subscriptionId;
+    }
+
+    /**
+     * @return The sender of the message.
+     */
+    String getAddress() {
+        return address;
+    }
+
+    /**
+     * Delivers messages in the background, keeping the broadcast alive until done.
+     *
+     * @param context    Any context.
+     * @param deliveries The messages received in one broadcast.
+     * @param result     The receiver's pending result, from {@link BroadcastReceiver#goAsync()}.
+     */
+    static void deliverAsync(Context context, List<IncomingSmsDelivery> deliveries,
+                             BroadcastReceiver.PendingResult result) {
+        Context appContext = context.getApplicationContext();
+        queue.addAll(deliveries);
+        executor.execute(() -> {
+            try {
+                // Take everything queued so far; later tasks find their messages already sent
+                List<IncomingSmsDelivery> pending = new ArrayList<>();
+                IncomingSmsDelivery delivery;
+                while ((delivery = queue.poll()) != null) {
+                    pending.add(delivery);
+                }
+                if (!pending.isEmpty()) {
+                    deliver(appContext, pending);
+                }
+            } finally {
+                result.finish();
+            }
+        });
+    }
+
+    private static void deliver(Context context, List<IncomingSmsDelivery> deliveries) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        List<Destination> destinations = Destination.fromSettings(prefs);
+        if (destinations.isEmpty()) {
+            Log.e(TAG, "Webhook URL is empty. Please configure in settings.");
+            return;
+        }
+
+        try {
+            SmsUploadService.ensureCacheLoaded(context);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Unable to load cache, leaving messages to the inbox scan: " + ioe);
+            return;
+        }
+
+        List<IncomingSmsDelivery> deliverable = new ArrayList<>(deliveries.size());
+        for (IncomingSmsDelivery delivery : deliveries) {
+            if (delivery.address == null || delivery.body.isEmpty()) {
+                Log.w(TAG, "Incoming message has no sender or body, leaving it to the inbox scan");
+                continue;
+            }
+            deliverable.add(delivery);
+        }
+
+        // Send the fields a scan of the inbox would, so the payload does not depend on which path delivers it
+        MessageProjection projection = MessageProjection.forSettings(context.getContentResolver(),
+                Uri.parse("content://sms/inbox"), prefs);
+
+        // Journal for every destination first, so messages survive a failed upload or the process being killed
+        List<List<IncomingSmsDelivery>> unsent = new ArrayList<>(destinations.size());
+        for (Destination destination : destinations) {
+            DigestCache cache = DigestCache.getInstance(destination.getId());
+            Outbox outbox = Outbox.getInstance(context, destination);
+            List<IncomingSmsDelivery> pending = new ArrayList<>(deliverable.size());
+            for (IncomingSmsDelivery delivery : deliverable) {
+                if (delivery.prepare(cache, outbox, destination, projection)) {
+                    pending.add(delivery);
+                }
+            }
+            if (!pending.isEmpty()) {
+                try {
+                    outbox.sync();
+                } catch (IOException ioe) {
+                    Log.w(TAG, "Unable to sync outbox of " + destination + ": " + ioe);
+                }
+            }
+            unsent.add(pending);
+        }
+
+        boolean failed = false;
+        for (int i = 0; i < destinations.size(); i++) {
+            if (!unsent.get(i).isEmpty()) {
+                failed |= !deliver(context, prefs, destinations.get(i), unsent.get(i));
+            }
+        }
+        if (failed) {
+            OutboxDrainWorker.schedule(context);
+        }
+    }
+
+    // Uploads journalled messages to one destination, returning whether they were all acknowledged
+    private static boolean deliver(Context context, SharedPreferences prefs, Destination destination,
+                                   List<IncomingSmsDelivery> unsent) {
+        DigestCache cache = DigestCache.getInstance(destination.getId());
+        Outbox outbox = Outbox.getInstance(context, destination);
+        WebhookUploader uploader = WebhookUploader.getInstance();
+        WebhookUploader.BatchFormat format = SmsStoreWorker.getBatchFormat(prefs);
+        long started = SystemClock.elapsedRealtime();
+        boolean failed = false;
+        if (format == null) {
+            for (IncomingSmsDelivery delivery : unsent) {
+                if (!upload(destination,
+                        () -> uploader.upload(delivery.payload, delivery.objectName, destination, prefs))) {
+                    outbox.release(delivery.objectName);
+                    failed = true;
+                    continue;
+                }
+                delivery.acknowledge(cache, outbox);
+            }
+        } else {
+            List<byte[]> payloads = new ArrayList<>(unsent.size());
+            for (IncomingSmsDelivery delivery : unsent) {
+                payloads.add(delivery.payload);
+            }
+            if (upload(destination, () -> uploader.uploadBatch(payloads, destination, prefs, format))) {
+                for (IncomingSmsDelivery delivery : unsent) {
+                    delivery.acknowledge(cache, outbox);
+                }
+            } else {
+                for (IncomingSmsDelivery delivery : unsent) {
+                    outbox.release(delivery.objectName);
+                }
+                failed = true;
+            }
+        }
+        Log.i(TAG, "Delivered " + unsent.size() + " incoming messages to " + destination + " in "
+                + (SystemClock.elapsedRealtime() - started) + "ms" + (failed ? ", some left in outbox" : ""));
+
+        try {
+            cache.save();
+        } catch (IOException ioe) {
+            Log.e(TAG, "Unable to save cache of " + destination + ": " + ioe);
+        }
+        return !failed;
+    }
+
+    // One attempt only, within the destination's rate limit: the outbox drain worker owns retries
+    private static boolean upload(Destination destination, RetryPolicy.Upload upload) {
+        try {
+            destination.acquirePermit();
+            upload.run();
+            return true;
+        } catch (WebhookUploader.WebhookUploadException whue) {
+            if (whue.getCause() instanceof WebhookUploader.ConflictException) {
+                // The webhook already has it, which is as good as an acknowledgement
+                return true;
+            }
+            Log.w(TAG, "Real-time upload to " + destination + " failed, leaving message in outbox: " + whue);
+            return false;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // De-duplicates, claims and journals the message for a destination, returning whether it still needs uploading there.
+    // The key and payload are worked out once, for the first destination that needs them.
+    private boolean prepare(DigestCache cache, Outbox outbox, Destination destination, MessageProjection projection) {
+        if (objectName == null) {
+            byte[] digest = MessageFingerprinter.get().fingerprint(cache.getAlgorithm(), dateSent, address, body);
+            objectName = MessageFingerprinter.toHex(digest);
+        }
+        if (cache.exists(objectName)) {
+            Log.i(TAG, "Message from '" + address + "' already delivered to " + destination);
+            return false;
+        }
+        if (outbox.contains(objectName) || !outbox.claim(objectName)) {
+            // Already journalled, or another sender is uploading it
+            return false;
+        }
+        if (payload == null) {
+            payload = encodeMessage(projection);
+        }
+        try {
+            outbox.enqueue(objectName, payload);
+        } catch (IOException ioe) {
+            Log.w(TAG, "Unable to add message to outbox: " + ioe);
+        }
+        return true;
+    }
+
+    private void acknowledge(DigestCache cache, Outbox outbox) {
+        cache.add(objectName);
+        outbox.remove(objectName);
+    }
+
+    // The values the SMS app will store for the message, less those only the SMS provider assigns
+    private byte[] encodeMessage(MessageProjection projection) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("address", address);
+        values.put("date", date);
+        values.put("date_sent", dateSent);
+        values.put("protocol", protocol);
+        values.put("read", 0);
+        values.put("type", 1);
+        values.put("reply_path_present", replyPathPresent ? 1 : 0);
+        values.put("body", body);
+        values.put("service_center", serviceCenter);
+        if (subscriptionId >= 0) {
+            values.put("sub_id", subscriptionId);
+        }
+        values.put("seen", 0);
+        PayloadWriter writer = new PayloadWriter();
+        projection.write(values, writer);
+        return writer.toByteArray();
+    }
+}
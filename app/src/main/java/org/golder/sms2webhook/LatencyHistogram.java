@@ -0,0 +1,117 @@
+package org.golder.sms2webhook;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket latency histogram, safe to record into from any thread.
+ *
+ * Buckets are log-linear, in the style of HDR histograms: each power of two
+ * is split into four, so a reported percentile is within 25% of the true
+ * value, from one nanosecond up to about 19 hours. Recording finds the
+ * bucket with a few shifts and bumps a {@link LongAdder}, so it takes no lock
+ * and does not allocate once the adder has settled.
+ */
+public class LatencyHistogram {
+
+    // Each power of two is split into 2^SUB_BITS linear sub-buckets
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    // Enough buckets for 2^46 nanoseconds; anything longer lands in the last one
+    private static final int BUCKETS = (46 - SUB_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one measurement.
+     *
+     * @param nanos The duration, in nanoseconds.
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts[bucketFor(nanos)].increment();
+        total.increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * @return The number of measurements recorded.
+     */
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * @return The mean of the measurements, in nanoseconds, or 0 if there are none.
+     */
+    public long getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : sum.sum() / count;
+    }
+
+    /**
+     * Returns an upper bound for a percentile of the measurements. Measurements
+     * recorded while this runs may or may not be counted.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return The upper bound of the bucket holding the percentile, in nanoseconds, or 0 if there are none.
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Discards all measurements.
+     */
+    public void reset() {
+        for (LongAdder count : counts) {
+            count.reset();
+        }
+        total.reset();
+        sum.reset();
+    }
+
+    static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub);
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -8,12 +8,14 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
 import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -22,16 +24,29 @@ import android.widget.ScrollView;
 import android.widget.TextView;
 
 import androidx.appcompat.widget.Toolbar;
+import androidx.preference.PreferenceManager;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final int PERMISSION_REQUEST_CODE = 1;
+    private static final int IMPORT_BACKUP_REQUEST_CODE = 2;
     private static final String APP_NAME = "sms2webhook";
 
+    // Setting holding how often to redraw the status, at most once per frame
+    static final String PREF_STATUS_REFRESH_INTERVAL = "status_refresh_interval";
+    private static final int DEFAULT_STATUS_REFRESH_INTERVAL = 100; // milliseconds
+
     private SmsUploadService service;
     private boolean isBound = false;
 
-    private Handler handler;
+    private TextView textView;
+    private ProgressBar progressBar;
+
+    // What is on screen, so unchanged status is not redrawn
+    private final StringBuilder statusText = new StringBuilder();
+    private long shownVersion = -1;
+    private long refreshInterval;
+    private boolean refreshing = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -49,18 +64,50 @@ public class MainActivity extends AppCompatActivity {
         setupToolbar();
         // Start service
         startService(new Intent(this, SmsUploadService.class));
-
-        // Initialize statistics
-        Statistics stats = Statistics.getInstance();
-        stats.setWidgets(findViewById(R.id.textView), findViewById(R.id.progressBar));
     }
 
     private void setupViews() {
         ScrollView scrollView = findViewById(R.id.scrollView);
-        TextView textView = findViewById(R.id.textView);
-        ProgressBar progressBar = findViewById(R.id.progressBar);
+        textView = findViewById(R.id.textView);
+        progressBar = findViewById(R.id.progressBar);
         textView.setMovementMethod(new ScrollingMovementMethod());
-        textView.setText("Starting main activity...\n");
+        Statistics.getInstance().setStatus("Starting main activity...");
+    }
+
+    // Redraws the status on a frame no sooner than refreshInterval after the last
+    private final Choreographer.FrameCallback statusRefresher = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!refreshing) {
+                return;
+            }
+            showStatus();
+            Choreographer.getInstance().postFrameCallbackDelayed(this, refreshInterval);
+        }
+    };
+
+    private void startStatusRefresh() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        refreshInterval = SmsStoreWorker.getIntPreference(prefs, PREF_STATUS_REFRESH_INTERVAL,
+                DEFAULT_STATUS_REFRESH_INTERVAL);
+        refreshing = true;
+        Choreographer.getInstance().postFrameCallback(statusRefresher);
+    }
+
+    private void stopStatusRefresh() {
+        refreshing = false;
+        Choreographer.getInstance().removeFrameCallback(statusRefresher);
+    }
+
+    private void showStatus() {
+        Statistics stats = Statistics.getInstance();
+        StatusLog log = stats.getStatusLog();
+        if (log.getVersion() != shownVersion) {
+            shownVersion = log.snapshot(statusText);
+            textView.setText(statusText);
+        }
+        progressBar.setMax(stats.getInboxCount());
+        progressBar.setProgress(stats.getProcessedCount());
     }
 
     private void setupToolbar() {
@@ -76,11 +123,13 @@ public class MainActivity extends AppCompatActivity {
         if (!isBound) {
             Log.e(APP_NAME, "Unable to bind to service");
         }
+        startStatusRefresh();
     }
 
     @Override
     protected void onStop() {
         super.onStop();
+        stopStatusRefresh();
         if (isBound) {
             unbindService(connection);
             isBound = false;
@@ -119,6 +168,22 @@ public class MainActivity extends AppCompatActivity {
             return true;
         }
 
+        if (id == R.id.action_full_rescan) {
+            if (service != null) {
+                service.refresh(true);
+            }
+            return true;
+        }
+
+        if (id == R.id.action_import_backup) {
+            // Backups are often saved without an XML type, so offer any file
+            Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType("*/*");
+            startActivityForResult(intent, IMPORT_BACKUP_REQUEST_CODE);
+            return true;
+        }
+
         if (id == R.id.action_clear_cache) {
             if (service != null) {
                 service.clearCache();
@@ -134,6 +199,20 @@ public class MainActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+
+        if (requestCode == IMPORT_BACKUP_REQUEST_CODE && resultCode == RESULT_OK && data != null && data.getData() != null) {
+            Uri uri = data.getData();
+            // The import runs in the background, possibly after this activity and process are gone
+            getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            Log.i(APP_NAME, "Importing backup " + uri);
+            Statistics.getInstance().setStatus("Importing backup...");
+            SmsStoreWorker.scheduleImport(this, uri);
+        }
+    }
+
     private final ServiceConnection connection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName className, IBinder binder) {
@@ -0,0 +1,530 @@
+package org.golder.sms2webhook;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only journal of messages that have been encoded but not yet
+ * acknowledged by the webhook. Entries survive process death and reboots, so
+ * failed deliveries are retried from here instead of by rescanning the inbox.
+ * Each {@link Destination} has its own journal.
+ *
+ * The journal is binary: after a header, each record is either an enqueue
+ * ('+', key length byte, key, payload length int, payload) or an
+ * acknowledgement ('-', key length byte, key). Payloads are written straight
+ * from the encoded bytes and only the offset of each pending payload is kept
+ * in memory, so journalling a message copies nothing and the outbox costs a
+ * few dozen bytes per entry however large the payloads are. Payloads are read
+ * back from the file when replayed. The journal is compacted down to the
+ * pending entries once acknowledgements outnumber them. Journals written as
+ * text by earlier versions are converted on load.
+ */
+public class Outbox {
+
+    private static final String TAG = "outbox";
+
+    // Journal filename, relative to the app's files dir
+    private static final String FILE_NAME = "outbox";
+
+    // Minimum number of acknowledgement records before compacting
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    // Marks a binary journal ("S2WO"), followed by the format version
+    private static final int MAGIC = 0x5332574F;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+
+    private static final byte ENQUEUE = '+';
+    private static final byte REMOVE = '-';
+
+    // Longest key a record can hold, as its length is stored in one byte
+    private static final int MAX_KEY_LENGTH = 255;
+
+    // One instance per journal file
+    private static final Map<String, Outbox> instances = new HashMap<>();
+
+    // Synchronization monitor
+    private static final Object monitor = new Object();
+
+    private final File file;
+
+    // Pending entries, object name to where its payload is in the journal, in enqueue order
+    private final LinkedHashMap<String, Location> pending = new LinkedHashMap<>();
+
+    // Messages some sender is uploading right now, which peek() leaves alone so they are not sent twice
+    private final Set<String> inFlight = new HashSet<>();
+
+    private FileChannel channel;
+
+    // Length of the journal up to the end of the last complete record
+    private long end;
+
+    private int acknowledged = 0;
+
+    // Position of a payload in the journal
+    private static final class Location {
+        final long offset;
+        final int length;
+
+        Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // Private constructor to prevent instantiation
+    private Outbox(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the instance of the Outbox class for the primary destination,
+     * loading the journal on first use.
+     *
+     * @param context Any context, used to locate the app's files dir.
+     * @return The instance of the Outbox class.
+     */
+    public static Outbox getInstance(Context context) {
+        return getInstance(context, FILE_NAME);
+    }
+
+    /**
+     * Returns the instance of the Outbox class for a destination, loading the
+     * journal on first use.
+     *
+     * @param context     Any context, used to locate the app's files dir.
+     * @param destination The destination.
+     * @return The instance of the Outbox class.
+     */
+    public static Outbox getInstance(Context context, Destination destination) {
+        return getInstance(context, destination.fileName(FILE_NAME));
+    }
+
+    private static Outbox getInstance(Context context, String fileName) {
+        synchronized (monitor) {
+            Outbox instance = instances.get(fileName);
+            if (instance == null) {
+                instance = new Outbox(new File(context.getApplicationContext().getFilesDir(), fileName));
+                instance.load();
+                instances.put(fileName, instance);
+            }
+            return instance;
+        }
+    }
+
+    private synchronized void load() {
+        pending.clear();
+        acknowledged = 0;
+        end = 0;
+        if (file.exists()) {
+            try {
+                if (isBinary()) {
+                    replay();
+                } else {
+                    convertLegacy();
+                }
+            } catch (IOException ioe) {
+                Log.e(TAG, "Unable to read outbox journal, keeping " + pending.size() + " entries: " + ioe);
+            }
+        }
+        Log.i(TAG, "Loaded outbox with " + pending.size() + " pending messages");
+    }
+
+    private boolean isBinary() throws IOException {
+        if (file.length() < HEADER_LENGTH) {
+            // Empty, or a header torn by a crash; either way there are no records
+            return file.length() == 0 || !startsWithText();
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+    private boolean startsWithText() throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            int first = in.read();
+            return first == ENQUEUE || first == REMOVE;
+        }
+    }
+
+    // Indexes the records of a binary journal, dropping a record torn by a crash mid-write
+    private void replay() throws IOException {
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (file.length() >= HEADER_LENGTH) {
+                in.readInt();
+                int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unknown outbox journal version " + version);
+                }
+                position = HEADER_LENGTH;
+            }
+            byte[] keyBytes = new byte[MAX_KEY_LENGTH];
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                int keyLength = in.readUnsignedByte();
+                in.readFully(keyBytes, 0, keyLength);
+                String key = new String(keyBytes, 0, keyLength, StandardCharsets.US_ASCII);
+                long next = position + 2 + keyLength;
+                if (type == ENQUEUE) {
+                    int length = in.readInt();
+                    if (length < 0) {
+                        break;
+                    }
+                    long offset = next + 4;
+                    long skipped = 0;
+                    while (skipped < length) {
+                        long step = in.skip(length - skipped);
+                        if (step <= 0) {
+                            throw new EOFException();
+                        }
+                        skipped += step;
+                    }
+                    pending.put(key, new Location(offset, length));
+                    next = offset + length;
+                } else if (type == REMOVE) {
+                    pending.remove(key);
+                    acknowledged += 1;
+                } else {
+                    break;
+                }
+                position = next;
+            }
+        } catch (EOFException eof) {
+            // Handled below, with any other torn record
+        }
+        end = position;
+        if (end != file.length()) {
+            Log.w(TAG, "Truncating partial record at end of outbox journal");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(end);
+            }
+        }
+    }
+
+    // Reads a text journal ("+key\tjson" and "-key" lines) and rewrites it in the binary format
+    private void convertLegacy() throws IOException {
+        LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("+")) {
+                    int tab = line.indexOf('\t');
+                    if (tab > 1 && tab - 1 <= MAX_KEY_LENGTH) {
+                        entries.put(line.substring(1, tab), line.substring(tab + 1).getBytes(StandardCharsets.UTF_8));
+                        continue;
+                    }
+                } else if (line.startsWith("-") && line.length() > 1) {
+                    entries.remove(line.substring(1));
+                    continue;
+                }
+                // Most likely a record torn by a crash mid-write
+                Log.w(TAG, "Skipping malformed outbox record");
+            }
+        }
+        Log.i(TAG, "Converting text outbox journal with " + entries.size() + " entries");
+        rewrite(new ArrayList<>(entries.entrySet()));
+    }
+
+    /**
+     * Adds a message to the outbox, unless it is already pending.
+     *
+     * @param objectName The message cache key.
+     * @param payload    The encoded message, which is journalled as it is.
+     * @throws IOException If the journal cannot be written.
+     */
+    public synchronized void enqueue(String objectName, byte[] payload) throws IOException {
+        if (objectName == null || objectName.isEmpty() || payload == null) {
+            throw new IllegalArgumentException("Object name and payload are required");
+        }
+        if (pending.containsKey(objectName)) {
+            return;
+        }
+        ByteBuffer header = recordHeader(ENQUEUE, objectName, 4);
+        header.putInt(payload.length).flip();
+        long offset = append(header, ByteBuffer.wrap(payload));
+        pending.put(objectName, new Location(offset, payload.length));
+    }
+
+    /**
+     * Removes an acknowledged message from the outbox.
+     *
+     * @param objectName The message cache key.
+     */
+    public synchronized void remove(String objectName) {
+        inFlight.remove(objectName);
+        if (pending.remove(objectName) == null) {
+            return;
+        }
+        try {
+            ByteBuffer header = recordHeader(REMOVE, objectName, 0);
+            header.flip();
+            append(header, null);
+            acknowledged += 1;
+            if (acknowledged >= COMPACT_THRESHOLD && acknowledged > pending.size()) {
+                compact();
+            }
+        } catch (IOException ioe) {
+            // The message is re-sent after a restart, and the webhook sees a duplicate at worst
+            Log.w(TAG, "Unable to record acknowledgement: " + ioe);
+        }
+    }
+
+    /**
+     * Marks a message as being uploaded, whether or not it is pending yet, so
+     * no other sender picks it up. The claim ends when the message is removed
+     * or released.
+     *
+     * @param objectName The message cache key.
+     * @return False if another sender is already uploading the message.
+     */
+    public synchronized boolean claim(String objectName) {
+        return inFlight.add(objectName);
+    }
+
+    /**
+     * Gives up the claim on a message after a failed upload, leaving it for
+     * the next sender if it is pending.
+     *
+     * @param objectName The message cache key.
+     */
+    public synchronized void release(String objectName) {
+        inFlight.remove(objectName);
+    }
+
+    /**
+     * Returns whether a message is waiting in the outbox.
+     *
+     * @param objectName The message cache key.
+     * @return True if the message is pending.
+     */
+    public synchronized boolean contains(String objectName) {
+        return pending.containsKey(objectName);
+    }
+
+    /**
+     * Returns the number of pending messages.
+     *
+     * @return The number of pending messages.
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Claims and returns up to {@code limit} pending messages, oldest first,
+     * reading their payloads back from the journal. Messages another sender
+     * has claimed are skipped. The caller must remove or release each one.
+     *
+     * @param limit The maximum number of entries to return.
+     * @return Object name and payload pairs.
+     * @throws IOException If the journal cannot be read.
+     */
+    public synchronized List<Map.Entry<String, byte[]>> peek(int limit) throws IOException {
+        List<Map.Entry<String, byte[]>> entries = new ArrayList<>(Math.min(limit, pending.size()));
+        for (Map.Entry<String, Location> entry : pending.entrySet()) {
+            if (entries.size() >= limit) {
+                break;
+            }
+            if (inFlight.contains(entry.getKey())) {
+                continue;
+            }
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), read(entry.getValue())));
+        }
+        for (Map.Entry<String, byte[]> entry : entries) {
+            inFlight.add(entry.getKey());
+        }
+        return entries;
+    }
+
+    /**
+     * Forces everything written so far to storage.
+     *
+     * @throws IOException If the journal cannot be synced.
+     */
+    public synchronized void sync() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Drops every pending message and truncates the journal.
+     */
+    public synchronized void clear() {
+        pending.clear();
+        try {
+            compact();
+        } catch (IOException ioe) {
+            Log.e(TAG, "Unable to clear outbox journal: " + ioe);
+        }
+    }
+
+    // Starts a record, leaving room for the given number of bytes after the key
+    private static ByteBuffer recordHeader(byte type, String objectName, int extra) {
+        byte[] key = objectName.getBytes(StandardCharsets.US_ASCII);
+        if (key.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Object name too long for the outbox journal");
+        }
+        ByteBuffer header = ByteBuffer.allocate(2 + key.length + extra);
+        header.put(type).put((byte) key.length).put(key);
+        return header;
+    }
+
+    // Writes a record at the end of the journal, returning the offset of its payload
+    private long append(ByteBuffer header, ByteBuffer payload) throws IOException {
+        FileChannel out = open();
+        long offset = end + header.remaining();
+        ByteBuffer[] buffers = payload == null ? new ByteBuffer[]{header} : new ByteBuffer[]{header, payload};
+        long length = header.remaining() + (payload == null ? 0 : payload.remaining());
+        try {
+            out.position(end);
+            long written = 0;
+            while (written < length) {
+                written += out.write(buffers);
+            }
+        } catch (IOException ioe) {
+            // Leave no partial record for the next one to be appended after
+            out.truncate(end);
+            throw ioe;
+        }
+        end += length;
+        return offset;
+    }
+
+    private FileChannel open() throws IOException {
+        if (channel == null) {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            if (end < HEADER_LENGTH) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                channel.truncate(0);
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                end = HEADER_LENGTH;
+            }
+        }
+        return channel;
+    }
+
+    private byte[] read(Location location) throws IOException {
+        byte[] payload = new byte[location.length];
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        FileChannel in = open();
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, location.offset + buffer.position()) < 0) {
+                throw new EOFException("Outbox journal ends inside a payload");
+            }
+        }
+        return payload;
+    }
+
+    // Rewrites the journal with only the pending entries, copying their payloads file to file
+    private void compact() throws IOException {
+        FileChannel in = open();
+        LinkedHashMap<String, Location> locations = new LinkedHashMap<>();
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = startRewrite(temp)) {
+            FileChannel target = out.getChannel();
+            for (Map.Entry<String, Location> entry : pending.entrySet()) {
+                Location location = entry.getValue();
+                long offset = writeEnqueueHeader(out, entry.getKey(), location.length);
+                long copied = 0;
+                while (copied < location.length) {
+                    long step = in.transferTo(location.offset + copied, location.length - copied, target);
+                    if (step <= 0) {
+                        throw new EOFException("Outbox journal ends inside a payload");
+                    }
+                    copied += step;
+                }
+                out.seek(offset + location.length);
+                locations.put(entry.getKey(), new Location(offset, location.length));
+            }
+            out.getFD().sync();
+        }
+        finishRewrite(temp, locations);
+        Log.d(TAG, "Compacted outbox to " + pending.size() + " entries");
+    }
+
+    // Writes a journal holding the given entries, replacing the current one
+    private void rewrite(List<Map.Entry<String, byte[]>> entries) throws IOException {
+        LinkedHashMap<String, Location> locations = new LinkedHashMap<>();
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = startRewrite(temp)) {
+            for (Map.Entry<String, byte[]> entry : entries) {
+                byte[] payload = entry.getValue();
+                long offset = writeEnqueueHeader(out, entry.getKey(), payload.length);
+                out.write(payload);
+                locations.put(entry.getKey(), new Location(offset, payload.length));
+            }
+            out.getFD().sync();
+        }
+        finishRewrite(temp, locations);
+    }
+
+    private static RandomAccessFile startRewrite(File temp) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        out.setLength(0);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        return out;
+    }
+
+    // Writes the start of an enqueue record, returning the offset its payload goes at
+    private static long writeEnqueueHeader(RandomAccessFile out, String objectName, int length) throws IOException {
+        ByteBuffer header = recordHeader(ENQUEUE, objectName, 4);
+        header.putInt(length);
+        out.write(header.array());
+        return out.getFilePointer();
+    }
+
+    // Renames the rewritten journal into place, via an atomic rename
+    private void finishRewrite(File temp, LinkedHashMap<String, Location> locations) throws IOException {
+        closeChannel();
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to replace outbox journal " + file);
+        }
+        pending.clear();
+        pending.putAll(locations);
+        end = file.length();
+        acknowledged = 0;
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            Log.w(TAG, "Error closing outbox journal: " + ioe);
+        }
+        channel = null;
+    }
+}
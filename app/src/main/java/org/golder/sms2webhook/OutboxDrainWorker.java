@@ -0,0 +1,229 @@
+package org.golder.sms2webhook;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+/**
+ * Replays messages left in the {@link Outbox} after failed uploads, network
+ * loss or process death, for each {@link Destination} in turn. Its cost
+ * depends on the number of pending messages, not on the size of the inbox.
+ */
+public class OutboxDrainWorker extends Worker {
+
+    private static final String TAG = "outboxdrain";
+
+    // Unique work name, so at most one drain is scheduled at a time
+    private static final String WORK_NAME = "outbox_drain";
+
+    private static final long INITIAL_BACKOFF = 30; // seconds
+
+    public OutboxDrainWorker(@NonNull Context context, @NonNull WorkerParameters parameters) {
+        super(context, parameters);
+    }
+
+    /**
+     * Schedules a drain of the outbox once the network is available, unless one is already pending.
+     *
+     * @param context Any context.
+     */
+    public static void schedule(Context context) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(OutboxDrainWorker.class)
+                .addTag("outbox")
+                .setConstraints(constraints)
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, INITIAL_BACKOFF, TimeUnit.SECONDS)
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.KEEP, request);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        SharedPreferences prefs = androidx.preference.PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        List<Destination> destinations = Destination.fromSettings(prefs);
+        if (destinations.isEmpty()) {
+            if (Outbox.getInstance(getApplicationContext()).size() == 0) {
+                return Result.success();
+            }
+            Log.e(TAG, "Webhook URL is empty. Please configure in settings.");
+            return Result.failure();
+        }
+        int waiting = 0;
+        for (Destination destination : destinations) {
+            waiting += Outbox.getInstance(getApplicationContext(), destination).size();
+        }
+        if (waiting == 0) {
+            return Result.success();
+        }
+
+        try {
+            SmsUploadService.ensureCacheLoaded(getApplicationContext());
+        } catch (IOException ioe) {
+            Log.e(TAG, "Unable to load cache: " + ioe);
+            return Result.retry();
+        }
+
+        // Each destination is drained on its own, so one that is down does not hold up the rest
+        Result result = Result.success();
+        for (Destination destination : destinations) {
+            if (isStopped()) {
+                return Result.retry();
+            }
+            if (!drain(destination, prefs)) {
+                result = Result.retry();
+            }
+        }
+        return result;
+    }
+
+    // Replays one destination's outbox, returning false if anything is left to retry later
+    private boolean drain(Destination destination, SharedPreferences prefs) {
+        Outbox outbox = Outbox.getInstance(getApplicationContext(), destination);
+        if (outbox.size() == 0) {
+            return true;
+        }
+        DigestCache cache = DigestCache.getInstance(destination.getId());
+        Replay replay = new Replay(destination, prefs, outbox, cache);
+
+        Log.i(TAG, "Draining " + outbox.size() + " messages from outbox of " + destination + "...");
+        boolean drained = true;
+        while (outbox.size() > 0 && !isStopped()) {
+            List<Map.Entry<String, byte[]>> entries;
+            try {
+                entries = outbox.peek(replay.batchSize);
+            } catch (IOException ioe) {
+                Log.e(TAG, "Unable to read outbox of " + destination + ", will retry later: " + ioe);
+                drained = false;
+                break;
+            }
+            if (entries.isEmpty()) {
+                // Whatever is left is being uploaded by a scan or a real-time delivery, which keep it on failure
+                Log.i(TAG, "Remaining outbox entries of " + destination + " are already being sent");
+                drained = false;
+                break;
+            }
+            try {
+                if (!replay.send(entries)) {
+                    drained = false;
+                    break;
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                drained = false;
+                break;
+            } finally {
+                // Entries that were not acknowledged go back to the outbox for the next sender
+                for (Map.Entry<String, byte[]> entry : entries) {
+                    outbox.release(entry.getKey());
+                }
+            }
+        }
+        Log.i(TAG, "Sent " + replay.sent + " messages from outbox to " + destination + ", "
+                + outbox.size() + " remaining");
+
+        try {
+            cache.save();
+        } catch (IOException ioe) {
+            Log.e(TAG, "Unable to save cache: " + ioe);
+        }
+        return drained && outbox.size() == 0;
+    }
+
+    // Uploads outbox entries to one destination and settles them with the outbox
+    private static class Replay {
+        final Destination destination;
+        final SharedPreferences prefs;
+        final Outbox outbox;
+        final DigestCache cache;
+        final WebhookUploader uploader = WebhookUploader.getInstance();
+        final WebhookUploader.BatchFormat format;
+        final int batchSize;
+        final RetryPolicy retryPolicy;
+        int sent = 0;
+
+        Replay(Destination destination, SharedPreferences prefs, Outbox outbox, DigestCache cache) {
+            this.destination = destination;
+            this.prefs = prefs;
+            this.outbox = outbox;
+            this.cache = cache;
+            this.format = SmsStoreWorker.getBatchFormat(prefs);
+            this.batchSize = format == null ? 1
+                    : SmsStoreWorker.getIntPreference(prefs, SmsStoreWorker.PREF_BATCH_SIZE, SmsStoreWorker.DEFAULT_BATCH_SIZE);
+            this.retryPolicy = new RetryPolicy(new CircuitBreaker(), destination);
+        }
+
+        // Sends entries, returning false if they failed in a way that is worth retrying later
+        boolean send(List<Map.Entry<String, byte[]>> entries) throws InterruptedException {
+            // Journalled payloads are sent as they are, without parsing them again
+            List<byte[]> payloads = new ArrayList<>(entries.size());
+            for (Map.Entry<String, byte[]> entry : entries) {
+                payloads.add(entry.getValue());
+            }
+
+            try {
+                if (format == null) {
+                    retryPolicy.execute(() -> uploader.upload(payloads.get(0), entries.get(0).getKey(), destination, prefs));
+                } else {
+                    retryPolicy.execute(() -> uploader.uploadBatch(payloads, destination, prefs, format));
+                }
+            } catch (WebhookUploader.WebhookUploadException whue) {
+                if (whue.getCause() instanceof WebhookUploader.ConflictException) {
+                    // The webhook already has it, which is as good as an acknowledgement
+                    Log.i(TAG, "Webhook already has outbox entries: " + whue.getMessage());
+                } else if (RetryPolicy.isRejected(whue)) {
+                    if (entries.size() > 1) {
+                        return split(entries, whue.getResponseCode());
+                    }
+                    // The payload was rejected, so replaying it would never succeed; auth and routing
+                    // errors keep the entries, since they go through once the settings are fixed
+                    Log.e(TAG, "Webhook rejected outbox entry, dropping it: " + whue);
+                    outbox.remove(entries.get(0).getKey());
+                    return true;
+                } else {
+                    Log.w(TAG, "Upload from outbox failed, will retry later: " + whue);
+                    return false;
+                }
+            }
+
+            for (Map.Entry<String, byte[]> entry : entries) {
+                cache.add(entry.getKey());
+                outbox.remove(entry.getKey());
+            }
+            sent += entries.size();
+            return true;
+        }
+
+        // A rejected batch is resent in parts, so only the messages rejected on their own are dropped:
+        // halves when it was too large as a whole (413), one at a time otherwise
+        private boolean split(List<Map.Entry<String, byte[]>> entries, int responseCode) throws InterruptedException {
+            int part = responseCode == 413 ? (entries.size() + 1) / 2 : 1;
+            Log.w(TAG, "Webhook rejected a batch of " + entries.size() + " outbox entries (" + responseCode
+                    + "), resending in parts of " + part);
+            for (int start = 0; start < entries.size(); start += part) {
+                if (!send(entries.subList(start, Math.min(start + part, entries.size())))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
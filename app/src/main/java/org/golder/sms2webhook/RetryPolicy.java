@@ -0,0 +1,202 @@
+package org.golder.sms2webhook;
+
+import android.util.Log;
+
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether and when a failed upload is retried, and runs uploads
+ * under that policy, reporting outcomes to a {@link CircuitBreaker}. Every
+ * attempt first waits for the destination's rate limit, if it has one.
+ *
+ * Server errors, timeouts and network errors are retried with exponential
+ * backoff and full jitter. Rate limiting honours the Retry-After header.
+ * Other client errors (including 409 Conflict) are never retried. Of those,
+ * authentication and routing errors mean every upload to the endpoint will
+ * fail, so they count towards the circuit breaker; only rejections of the
+ * payload itself are specific to one message.
+ */
+public class RetryPolicy {
+
+    private static final String TAG = "retry";
+
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long BASE_DELAY = 500; // milliseconds
+    private static final long MAX_DELAY = 30000; // milliseconds
+
+    // Longest Retry-After we are willing to wait out within a run
+    static final long MAX_IN_RUN_WAIT = 30000; // milliseconds
+
+    // Responses rejecting the payload rather than the request as a whole
+    private static final int[] PAYLOAD_REJECTIONS = {400, 413, 415, 422};
+
+    /**
+     * Classes of upload failure, each with its own handling.
+     */
+    public enum ErrorClass {
+        /** 5xx response. */
+        SERVER,
+        /** 429 Too Many Requests. */
+        RATE_LIMITED,
+        /** Connect, read or write timeout. */
+        TIMEOUT,
+        /** Any other I/O error, e.g. no route or connection reset. */
+        NETWORK,
+        /** 4xx response other than those below, e.g. a wrong URL or an expired token. */
+        ENDPOINT,
+        /** A rejected payload (400, 413, 415 or 422), or any other response that retrying will not fix. */
+        PERMANENT
+    }
+
+    /**
+     * An upload to be run under the policy.
+     */
+    public interface Upload {
+        void run() throws WebhookUploader.WebhookUploadException;
+    }
+
+    private final CircuitBreaker breaker;
+    private final Destination destination;
+
+    /**
+     * Creates a policy for uploads to one destination, reporting to the given circuit breaker.
+     *
+     * @param breaker     The breaker shared by every upload to the destination in the run.
+     * @param destination The destination, whose rate limit applies to every attempt.
+     */
+    public RetryPolicy(CircuitBreaker breaker, Destination destination) {
+        this.breaker = breaker;
+        this.destination = destination;
+    }
+
+    /**
+     * Classifies an upload failure.
+     *
+     * @param e The failure.
+     * @return The class of error.
+     */
+    public static ErrorClass classify(WebhookUploader.WebhookUploadException e) {
+        int code = e.getResponseCode();
+        if (code == 429) {
+            return ErrorClass.RATE_LIMITED;
+        }
+        if (code == 408) {
+            return ErrorClass.TIMEOUT;
+        }
+        if (code >= 500) {
+            return ErrorClass.SERVER;
+        }
+        if (code >= 400) {
+            for (int rejection : PAYLOAD_REJECTIONS) {
+                if (code == rejection) {
+                    return ErrorClass.PERMANENT;
+                }
+            }
+            return ErrorClass.ENDPOINT;
+        }
+        if (code >= 0) {
+            return ErrorClass.PERMANENT;
+        }
+        Throwable cause = e.getCause();
+        if (cause instanceof InterruptedIOException) {
+            return ErrorClass.TIMEOUT;
+        }
+        if (cause instanceof IOException) {
+            return ErrorClass.NETWORK;
+        }
+        return ErrorClass.PERMANENT;
+    }
+
+    /**
+     * Checks whether the webhook rejected the payload itself, so sending it
+     * again would never succeed. Authentication and routing errors are not
+     * rejections: the same payload may be accepted once the settings are fixed.
+     *
+     * @param e The failure.
+     * @return True for a 400, 413, 415 or 422 response.
+     */
+    public static boolean isRejected(WebhookUploader.WebhookUploadException e) {
+        return classify(e) == ErrorClass.PERMANENT && e.getResponseCode() >= 400;
+    }
+
+    /**
+     * Checks whether a failure is down to the endpoint or the network being
+     * unavailable for now, rather than to the message or the settings, so the
+     * same upload can be expected to succeed later.
+     *
+     * @param e The failure.
+     * @return True for server errors, rate limiting, timeouts, network errors and an open breaker.
+     */
+    public static boolean isTransient(WebhookUploader.WebhookUploadException e) {
+        if (e.getCause() instanceof CircuitBreaker.OpenException) {
+            return true;
+        }
+        ErrorClass errorClass = classify(e);
+        return errorClass == ErrorClass.SERVER || errorClass == ErrorClass.RATE_LIMITED
+                || errorClass == ErrorClass.TIMEOUT || errorClass == ErrorClass.NETWORK;
+    }
+
+    /**
+     * Runs an upload, retrying transient failures.
+     *
+     * @param upload The upload to run.
+     * @throws WebhookUploader.WebhookUploadException The last failure, if the upload did not succeed,
+     *                                                or immediately if the circuit breaker is open.
+     * @throws InterruptedException                   If interrupted while backing off or rate limited.
+     */
+    public void execute(Upload upload) throws WebhookUploader.WebhookUploadException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            if (breaker.isOpen()) {
+                throw new WebhookUploader.WebhookUploadException("Circuit breaker open, endpoint considered down",
+                        new CircuitBreaker.OpenException());
+            }
+            destination.acquirePermit();
+            try {
+                upload.run();
+                breaker.recordSuccess();
+                return;
+            } catch (WebhookUploader.WebhookUploadException e) {
+                ErrorClass errorClass = classify(e);
+                if (errorClass == ErrorClass.PERMANENT) {
+                    throw e;
+                }
+                if (errorClass == ErrorClass.ENDPOINT) {
+                    // Retrying will not fix it, but every other upload will fail the same way
+                    breaker.recordFailure(e.getRetryAfter());
+                    throw e;
+                }
+
+                long delay = getDelay(errorClass, attempt, e.getRetryAfter());
+                if (attempt >= MAX_ATTEMPTS || delay > MAX_IN_RUN_WAIT) {
+                    // Give up on this upload, and let the breaker decide about the endpoint
+                    breaker.recordFailure(e.getRetryAfter());
+                    throw e;
+                }
+                Log.d(TAG, errorClass + " error on attempt " + attempt + ", retrying in " + delay + "ms: " + e.getMessage());
+                Statistics.getInstance().increment(Statistics.Counter.RETRIES);
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    private static long getDelay(ErrorClass errorClass, int attempt, long retryAfter) {
+        if (retryAfter >= 0 && (errorClass == ErrorClass.RATE_LIMITED || errorClass == ErrorClass.SERVER)) {
+            return retryAfter;
+        }
+        return backoff(attempt);
+    }
+
+    /**
+     * Returns a backoff delay with full jitter, i.e. a random delay up to an
+     * exponentially growing, capped ceiling.
+     *
+     * @param attempt The attempt that just failed, starting at 1.
+     * @return The delay in milliseconds.
+     */
+    public static long backoff(int attempt) {
+        long ceiling = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt - 1, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
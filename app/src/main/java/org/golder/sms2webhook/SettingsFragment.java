@@ -1,7 +1,9 @@
 package org.golder.sms2webhook;
 
 import android.os.Bundle;
+import android.text.InputType;
 
+import androidx.preference.EditTextPreference;
 import androidx.preference.PreferenceFragmentCompat;
 
 /**
@@ -19,5 +21,24 @@ public class SettingsFragment extends PreferenceFragmentCompat {
     public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
         // Load the settings from the XML resource.
         setPreferencesFromResource(R.xml.settings, rootKey);
+
+        // Numeric settings only accept digits
+        setNumeric(SmsStoreWorker.PREF_BATCH_SIZE);
+        setNumeric(SmsStoreWorker.PREF_BATCH_FLUSH_INTERVAL);
+        setNumeric(SmsStoreWorker.PREF_UPLOAD_CONCURRENCY);
+
+        // Additional webhooks are entered one per line
+        EditTextPreference extraWebhooks = findPreference(Destination.PREF_EXTRA_WEBHOOKS);
+        if (extraWebhooks != null) {
+            extraWebhooks.setOnBindEditTextListener(editText -> editText.setInputType(InputType.TYPE_CLASS_TEXT
+                    | InputType.TYPE_TEXT_VARIATION_URI | InputType.TYPE_TEXT_FLAG_MULTI_LINE));
+        }
+    }
+
+    private void setNumeric(String key) {
+        EditTextPreference preference = findPreference(key);
+        if (preference != null) {
+            preference.setOnBindEditTextListener(editText -> editText.setInputType(InputType.TYPE_CLASS_NUMBER));
+        }
     }
 }
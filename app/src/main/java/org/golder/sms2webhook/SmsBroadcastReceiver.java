@@ -1,40 +1,26 @@
 package org.golder.sms2webhook;
 
 import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.os.IBinder;
+import android.provider.Telephony;
 import android.telephony.SmsMessage;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
 import static android.provider.Telephony.Sms.Intents.SMS_RECEIVED_ACTION;
 
 public class SmsBroadcastReceiver extends BroadcastReceiver {
     private static final String TAG = "SmsBroadcastReceiver";
     private static final String ACTION_SMS_RECEIVED = "android.provider.Telephony.SMS_RECEIVED";
     private static final int SMS_DELAY_BEFORE_REFRESH = 2000; // 2 seconds
-    private SmsUploadService service;
-    private boolean isBound = false;
     private Context context;
 
-    private final ServiceConnection connection = new ServiceConnection() {
-    @Override
-        public void onServiceConnected(ComponentName className, IBinder binder) {
-            service = ((SmsUploadService.LocalBinder) binder).getService();
-            Log.d(TAG, "Receiver connected to service");
-        }
-
-        @Override
-        public void onServiceDisconnected(ComponentName className) {
-            service = null;
-            Log.d(TAG, "Receiver disconnected from service");
-        }
-    };
-
     @Override
     public void onReceive(Context context, Intent intent) {
         this.context = context;
@@ -53,51 +39,54 @@ public class SmsBroadcastReceiver extends BroadcastReceiver {
             return;
         }
 
-        processIncomingSms(bundle);
+        processIncomingSms(intent, bundle);
     }
 
-    private void processIncomingSms(Bundle bundle) {
-            Object[] pdus = (Object[]) bundle.get("pdus");
-        String format = (String) bundle.get("format");
+    private void processIncomingSms(Intent intent, Bundle bundle) {
+        SmsMessage[] pdus = Telephony.Sms.Intents.getMessagesFromIntent(intent);
+        int subscriptionId = bundle.getInt("subscription", -1);
+        long received = System.currentTimeMillis();
 
         if (pdus == null || pdus.length == 0) {
             Log.w(TAG, "No SMS data found.");
             return;
         }
 
+        // The parts of a concatenated message arrive in one broadcast; join them
+        // into one message per sender, the way the SMS app stores them
+        List<IncomingSmsDelivery> deliveries = new ArrayList<>();
+        List<SmsMessage> parts = new ArrayList<>(pdus.length);
         for (int i = 0; i < pdus.length; i++) {
-            SmsMessage message = SmsMessage.createFromPdu((byte[]) pdus[i], format);
+            SmsMessage message = pdus[i];
             if (message == null) {
                 Log.w(TAG, "Failed to create SMS message from PDU.");
                 continue;
             }
+            if (!parts.isEmpty() && !Objects.equals(parts.get(0).getDisplayOriginatingAddress(),
+                    message.getDisplayOriginatingAddress())) {
+                deliveries.add(new IncomingSmsDelivery(parts, received, subscriptionId));
+                parts = new ArrayList<>();
+            }
+            parts.add(message);
+        }
+        if (!parts.isEmpty()) {
+            deliveries.add(new IncomingSmsDelivery(parts, received, subscriptionId));
+        }
+        if (deliveries.isEmpty()) {
+            return;
+        }
 
-            String msgFrom = message.getOriginatingAddress();
-            String msgBody = message.getMessageBody();
-
-            Log.i(TAG, "Received SMS from '" + msgFrom + "'");
-            Log.d(TAG, msgBody);
-            Toast.makeText(context, "Received SMS from '" + msgFrom + "'", Toast.LENGTH_SHORT).show();
-
-            // Wait a short delay before connecting to the service
-            new Thread(() -> {
-                try {
-                    Thread.sleep(SMS_DELAY_BEFORE_REFRESH);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Failed to delay SMS processing", e);
-                }
+        Log.d(TAG, "Reassembled " + pdus.length + " PDUs into " + deliveries.size() + " messages");
+        for (IncomingSmsDelivery delivery : deliveries) {
+            Log.i(TAG, "Received SMS from '" + delivery.getAddress() + "'");
+            Toast.makeText(context, "Received SMS from '" + delivery.getAddress() + "'", Toast.LENGTH_SHORT).show();
+        }
 
-                // Connect to service
-                Log.i(TAG, "Connecting to service...");
-                Intent serviceIntent = new Intent(context, SmsUploadService.class);
-                context.startService(serviceIntent);
+        // Upload straight away, keeping the broadcast alive until the webhook has answered
+        IncomingSmsDelivery.deliverAsync(context, deliveries, goAsync());
 
-                // If the service is not already bound, bind it now
-                if (!isBound) {
-                    context.bindService(serviceIntent, connection, Context.BIND_AUTO_CREATE);
-                    isBound = true;
-                }
-            }).start();
-        }
+        // Catch up with the inbox once the SMS app has stored the message, which
+        // also moves the watermark past it
+        SmsStoreWorker.schedule(context, false, SMS_DELAY_BEFORE_REFRESH);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,66 @@
+package org.golder.sms2webhook;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.Collection;
+
+/**
+ * Watches the SMS provider for new rows, whoever wrote them: the SMS app,
+ * a backup restore or another app. Each change schedules an incremental scan,
+ * which only reads rows past the watermark, so the cost is in proportion to
+ * the rows that changed rather than to the inbox. Notifications arriving
+ * within the batch window fold into one scan (see {@link SmsStoreWorker#schedule}).
+ */
+class SmsChangeObserver extends ContentObserver {
+
+    private static final String TAG = "smsobserver";
+
+    private static final Uri SMS_URI = Uri.parse("content://sms");
+
+    // How long to gather notifications before scanning
+    private static final long BATCH_WINDOW = 2000; // milliseconds
+
+    private final Context context;
+    private boolean registered = false;
+
+    SmsChangeObserver(Context context) {
+        // Called back on a binder thread, which is all scheduling needs
+        super(null);
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Starts watching the SMS provider.
+     */
+    void register() {
+        if (!registered) {
+            context.getContentResolver().registerContentObserver(SMS_URI, true, this);
+            registered = true;
+        }
+    }
+
+    /**
+     * Stops watching the SMS provider.
+     */
+    void unregister() {
+        if (registered) {
+            context.getContentResolver().unregisterContentObserver(this);
+            registered = false;
+        }
+    }
+
+    @Override
+    public void onChange(boolean selfChange, Collection<Uri> uris, int flags) {
+        // Deleted and edited rows are never new messages
+        if ((flags & (ContentResolver.NOTIFY_DELETE | ContentResolver.NOTIFY_UPDATE)) != 0
+                && (flags & ContentResolver.NOTIFY_INSERT) == 0) {
+            return;
+        }
+        Log.d(TAG, "SMS provider changed: " + uris);
+        SmsStoreWorker.schedule(context, false, BATCH_WINDOW);
+    }
+}
@@ -6,36 +6,176 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
-import org.golder.sms2webhook.AlreadyExistsException;
+import android.util.Xml;
 
-import org.apache.commons.lang3.StringUtils;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
 public class SmsStoreWorker extends Worker {
 
+    // Input data key requesting a scan of the whole inbox, ignoring the watermark
+    public static final String KEY_FULL_RESCAN = "full_rescan";
+
+    // Input data key naming a backup file to import instead of scanning the inbox
+    public static final String KEY_IMPORT_URI = "import_uri";
+
+    // Delivery settings
+    static final String PREF_DELIVERY_MODE = "delivery_mode";
+    static final String PREF_BATCH_SIZE = "batch_size";
+    static final String PREF_BATCH_FLUSH_INTERVAL = "batch_flush_interval";
+    static final String DELIVERY_MODE_SINGLE = "single";
+    static final String DELIVERY_MODE_JSON_ARRAY = "json_array";
+    static final String DELIVERY_MODE_NDJSON = "ndjson";
+    static final int DEFAULT_BATCH_SIZE = 50;
+    private static final int DEFAULT_BATCH_FLUSH_INTERVAL = 5000; // milliseconds
+    static final String PREF_UPLOAD_CONCURRENCY = "upload_concurrency";
+    private static final int PIPELINE_QUEUE_FACTOR = 2; // queued items per upload thread
+
+    // Longest a destination may hold up the scan for the others before it is left to catch up later
+    private static final long LAGGING_TIMEOUT = 5000; // milliseconds
+
+    // Unique work name, so scans run one at a time
+    private static final String WORK_NAME = "sms_scan";
+    private static final String IMPORT_WORK_NAME = "sms_import";
+
+    // Inbox rows read per query
+    private static final int PAGE_SIZE = 500;
+
+    // Scan progress, kept apart from the settings
+    private static final String STATE_PREFS = "scan_state";
+    private static final String KEY_RESCAN_CHECKPOINT = "rescan_checkpoint";
+    private static final String KEY_IMPORT_CHECKPOINT = "import_checkpoint";
+
+    // Minimum wait before an incremental scan, so bursts of requests share one
+    private static final long DEBOUNCE_DELAY = 1000; // milliseconds
+
+    // Single-flight state, shared by everything in this process that schedules scans
+    private static final Object scheduleLock = new Object();
+    private static boolean queued = false;
+    private static boolean fullRescanRequested = false;
+
     private final DigestCache cache;
+    private final Statistics stats;
 
     private SmsUploadService service;
     private boolean isBound = false;
 
+    // Messages uploaded, skipped or failed so far in this run
+    private int processedCount = 0;
+
+    // Delivery to each destination in this run, at most Destination.MAX_DESTINATIONS of them
+    private List<Submitter> submitters = Collections.emptyList();
+
+    // Columns used for the cache key, and reusable buffers for reading them
+    private int dateIndex = -1;
+    private int addressIndex = -1;
+    private int bodyIndex = -1;
+    private int dateSentIndex = -1;
+    private final CharArrayBuffer addressBuffer = new CharArrayBuffer(64);
+    private final CharArrayBuffer bodyBuffer = new CharArrayBuffer(256);
+
+    // Reused for encoding each message read from the cursor
+    private final PayloadWriter writer = new PayloadWriter();
+
+    // Algorithm of digests still to be re-keyed after a change of algorithm, or null
+    private FingerprintAlgorithm previousAlgorithm;
+
     public SmsStoreWorker(@NonNull Context context, @NonNull WorkerParameters parameters) {
         super(context, parameters);
 
         cache = DigestCache.getInstance();
+        stats = Statistics.getInstance();
+    }
+
+    /**
+     * Enqueues a run of the worker once the network is available.
+     *
+     * Scans are single-flight: at most one runs at a time, and at most one more
+     * is queued behind it. Requests made while a run is queued are folded into
+     * that run, and incremental scans wait a short debounce window first, so a
+     * burst of requests costs one scan. A request made while a scan is running
+     * queues one rerun after it, since the running scan may already have read
+     * past the new messages.
+     *
+     * @param context    Any context.
+     * @param fullRescan Whether to scan the whole inbox rather than only messages after the watermark.
+     * @param delay      How long to wait before running, in milliseconds.
+     */
+    public static void schedule(Context context, boolean fullRescan, long delay) {
+        synchronized (scheduleLock) {
+            fullRescanRequested |= fullRescan;
+            if (queued) {
+                Log.d("worker", "Scan already queued, folding request into it");
+                return;
+            }
+            queued = true;
+        }
+        if (!fullRescan) {
+            delay = Math.max(delay, DEBOUNCE_DELAY);
+        }
+
+        Constraints.Builder builder = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED);
+        Data.Builder data = new Data.Builder()
+                .putBoolean(KEY_FULL_RESCAN, fullRescan);
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(SmsStoreWorker.class)
+                        .addTag("refresh")
+                        .setInputData(data.build())
+                        .setConstraints(builder.build())
+                        .setInitialDelay(delay, TimeUnit.MILLISECONDS)
+                        .build();
+        // Appended work waits for a running scan, and replaces one that has failed
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.APPEND_OR_REPLACE, request);
+    }
+
+    /**
+     * Enqueues an import of an "SMS Backup &amp; Restore" style XML export once the
+     * network is available. Imports run one at a time, in the order requested.
+     *
+     * @param context Any context.
+     * @param uri     The backup file, readable by the app for as long as the import may take.
+     */
+    public static void scheduleImport(Context context, Uri uri) {
+        Constraints.Builder builder = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED);
+        Data.Builder data = new Data.Builder()
+                .putString(KEY_IMPORT_URI, uri.toString());
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(SmsStoreWorker.class)
+                        .addTag("import")
+                        .setInputData(data.build())
+                        .setConstraints(builder.build())
+                        .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(IMPORT_WORK_NAME, ExistingWorkPolicy.APPEND_OR_REPLACE, request);
     }
 
     private final ServiceConnection connection = new ServiceConnection() {
@@ -52,6 +192,11 @@ public class SmsStoreWorker extends Worker {
 
     @Override
     public void onStopped() {
+        unbind();
+    }
+
+    // Called from the worker thread once a scan ends, and from WorkManager's thread if the work is cancelled
+    private synchronized void unbind() {
         if (isBound) {
             getApplicationContext().unbindService(connection);
             isBound = false;
@@ -61,129 +206,932 @@ public class SmsStoreWorker extends Worker {
     @NonNull
     @Override
     public Result doWork() {
+        String importUri = getInputData().getString(KEY_IMPORT_URI);
+        if (importUri != null) {
+            return importBackup(Uri.parse(importUri));
+        }
+
+        boolean fullRescan;
+        synchronized (scheduleLock) {
+            // From here on, new requests need a run of their own
+            queued = false;
+            fullRescan = getInputData().getBoolean(KEY_FULL_RESCAN, false) || fullRescanRequested;
+            fullRescanRequested = false;
+        }
+
+        long started = System.nanoTime();
+        Result result;
+        try {
+            result = scan(fullRescan);
+        } finally {
+            // Release the service once the scan is over, so it can stop when nothing else needs it
+            unbind();
+        }
+        stats.record(Statistics.Timer.SCAN, System.nanoTime() - started);
+        Log.d("worker", "Metrics:\n" + stats.describeMetrics());
+        if (result instanceof Result.Failure) {
+            // Work appended behind a failed run fails with it, so let the next request enqueue afresh
+            synchronized (scheduleLock) {
+                queued = false;
+            }
+        }
+        return result;
+    }
+
+    private Result scan(boolean fullRescan) {
         Intent intent = new Intent(getApplicationContext(), SmsUploadService.class);
-        isBound = getApplicationContext().bindService(intent, connection, Context.BIND_AUTO_CREATE);
-        if (!isBound) {
+        boolean bound = getApplicationContext().bindService(intent, connection, Context.BIND_AUTO_CREATE);
+        synchronized (this) {
+            isBound = bound;
+        }
+        if (!bound) {
             Log.e("worker", "Unable to bind to service.");
         }
 
         // Check for credentials first
         SharedPreferences prefs = androidx.preference.PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-        String webhookUrl = prefs.getString("webhook_url", "");
-        if (webhookUrl.isEmpty()) {
+        List<Destination> destinations = Destination.fromSettings(prefs);
+        if (destinations.isEmpty()) {
             Log.e("worker", "Webhook URL is empty. Please configure in settings.");
-            service.setStatus("Webhook URL is empty. Please configure in settings.\n");
+            stats.setStatus("Webhook URL is empty. Please configure in settings.\n");
+            return Result.failure();
+        }
+
+        // Make sure we de-duplicate against what was sent before
+        try {
+            SmsUploadService.ensureCacheLoaded(getApplicationContext());
+        } catch (IOException ioe) {
+            Log.e("worker", "Unable to load cache: " + ioe);
+            stats.setStatus("Unable to load cache: " + ioe + "\n");
             return Result.failure();
         }
 
-        // Find SMSs already on phone, send for processing
+        // Find SMSs on phone, only those since the last run unless a full rescan was requested.
+        // After a change of fingerprint algorithm every message has to be re-keyed, so rescan.
+        // A full rescan that was stopped part way resumes after its last checkpoint.
+        previousAlgorithm = getPreviousAlgorithm(destinations);
+        SharedPreferences state = getApplicationContext().getSharedPreferences(STATE_PREFS, Context.MODE_PRIVATE);
+        long checkpoint = state.getLong(KEY_RESCAN_CHECKPOINT, -1);
+        fullRescan |= previousAlgorithm != null || checkpoint >= 0;
+
+        // Each destination carries on from its own watermark, so the scan starts from the one furthest behind.
+        // Upload stages run on their own threads, fed by this cursor reader.
+        openSubmitters(prefs, destinations, fullRescan ? Math.max(checkpoint, 0) : -1);
+        long watermark = Long.MAX_VALUE;
+        for (Submitter submitter : submitters) {
+            watermark = Math.min(watermark, submitter.start);
+        }
+        if (fullRescan && watermark > 0) {
+            Log.i("worker", "Resuming full rescan after message " + watermark + ".");
+        }
+
+        // Read the inbox a page at a time, keyed on _id, so the cursor window stays
+        // small however big the inbox is, and commit progress after every page
         ContentResolver resolver = getApplicationContext().getContentResolver();
-        Cursor cursor = resolver.query(Uri.parse("content://sms/inbox"), null, null, null, null);
-        if (cursor == null) {
-            Log.e("worker", "Unable to obtain SMS cursor.");
-            service.setStatus("Unable to obtain SMS cursor.");
+        Uri inbox = Uri.parse("content://sms/inbox");
+        MessageProjection projection = MessageProjection.forSettings(resolver, inbox, prefs);
+        long position = watermark;
+        int found = 0;
+        boolean scanned = false;
+        try {
+            while (true) {
+                Cursor cursor = MessageProjection.queryPage(resolver, inbox, projection.getColumns(),
+                        position, PAGE_SIZE);
+                if (cursor == null) {
+                    Log.e("worker", "Unable to obtain SMS cursor.");
+                    stats.setStatus("Unable to obtain SMS cursor.");
+                    if (found == 0) {
+                        return Result.failure();
+                    }
+                    break;
+                }
+                // Rows are counted as they are read: a provider that rejects the limit returns the rest
+                // of the inbox, and getCount() would make it count every remaining row up front
+                int rows = 0;
+                try {
+                    projection.bind(cursor);
+                    bindKeyColumns(cursor);
+                    int idIndex = cursor.getColumnIndexOrThrow("_id");
+                    while (rows < PAGE_SIZE && cursor.moveToNext()) {
+                        if (isStopped() || countActive() == 0) {
+                            break;
+                        }
+
+                        rows += 1;
+                        long id = cursor.getLong(idIndex);
+                        position = id;
+                        stats.increment(Statistics.Counter.MESSAGES_SCANNED);
+                        PendingMessage pending = prepareMessage(cursor, projection, id, begin(id));
+                        if (pending != null) {
+                            submit(pending);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                if (rows == 0 && found == 0 && fullRescan && watermark == 0 && !isStopped()) {
+                    Log.e("worker", "No SMS messages found in inbox on phone.");
+                    stats.setStatus("No SMS messages found in inbox on phone.\n");
+                    return Result.failure();
+                }
+                found += rows;
+                if (rows > 0) {
+                    stats.setInboxCount(found);
+                    stats.setStatus("Found " + found + (fullRescan ? "" : " new") + " messages in SMS inbox"
+                            + (rows == PAGE_SIZE ? " so far" : "") + ".\n");
+                }
+
+                if (isStopped()) {
+                    Log.i("worker", "Worker stopped, abandoning scan.");
+                    break;
+                }
+                if (countActive() == 0) {
+                    Log.w("worker", "No webhook is keeping up, abandoning scan.");
+                    break;
+                }
+                if (rows < PAGE_SIZE) {
+                    scanned = true;
+                    break;
+                }
+                checkpoint(fullRescan, state);
+            }
+
+            finishSubmitters(!isStopped());
+        } catch (InterruptedException ie) {
+            Log.w("worker", "Interrupted while uploading: " + ie);
+            cancelSubmitters();
+            Thread.currentThread().interrupt();
+        }
+        if (found == 0) {
+            Log.i("worker", "No new SMS messages since message " + watermark + ".");
+            stats.setStatus("No new SMS messages found in inbox.\n");
+        }
+
+        // Pick up where any destination left off, once a down endpoint has had time to recover
+        boolean behind = rescheduleBehind(fullRescan);
+        boolean complete = scanned && !behind;
+        scheduleOutboxDrain();
+
+        // Flush caches to storage, along with how far each destination got
+        Log.i("worker", "Saving cache...");
+        checkpoint(fullRescan && !complete, state);
+        if (complete) {
+            try {
+                state.edit().remove(KEY_RESCAN_CHECKPOINT).commit();
+
+                // Every message has now been looked up with the current algorithm
+                for (Submitter submitter : submitters) {
+                    submitter.cache.dropPrevious();
+                }
+            } catch (IOException ioe) {
+                Log.e("worker", "Unable to drop previous digests: " + ioe);
+            }
+        }
+
+        return Result.success();
+    }
+
+    // Algorithm of digests some destination still has to re-key, or null
+    private static FingerprintAlgorithm getPreviousAlgorithm(List<Destination> destinations) {
+        for (Destination destination : destinations) {
+            FingerprintAlgorithm algorithm = DigestCache.getInstance(destination.getId()).getPreviousAlgorithm();
+            if (algorithm != null) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets up delivery to each destination for this run.
+     *
+     * @param start Position every destination starts after, or -1 for each to start from its own watermark.
+     */
+    private void openSubmitters(SharedPreferences prefs, List<Destination> destinations, long start) {
+        submitters = new ArrayList<>(destinations.size());
+        for (int i = 0; i < destinations.size(); i++) {
+            Destination destination = destinations.get(i);
+            long from = start >= 0 ? start : DigestCache.getInstance(destination.getId()).getWatermark();
+            submitters.add(new Submitter(prefs, destination, 1 << i, from));
+        }
+    }
+
+    private void finishSubmitters(boolean sendRemaining) throws InterruptedException {
+        for (Submitter submitter : submitters) {
+            submitter.finish(sendRemaining);
+        }
+    }
+
+    private void cancelSubmitters() {
+        for (Submitter submitter : submitters) {
+            submitter.cancel();
+        }
+    }
+
+    // Number of destinations still taking messages in this run
+    private int countActive() {
+        int active = 0;
+        for (Submitter submitter : submitters) {
+            if (submitter.isActive()) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Schedules another scan for destinations that are down or fell behind.
+     *
+     * @return True if any destination needs another scan.
+     */
+    private boolean rescheduleBehind(boolean fullRescan) {
+        long delay = -1;
+        for (Submitter submitter : submitters) {
+            if (submitter.breaker.isOpen()) {
+                long retryDelay = submitter.breaker.getRetryDelay();
+                stats.setStatus(submitter.destination + " appears to be down, retrying in " + (retryDelay / 1000) + "s.\n");
+                delay = delay < 0 ? retryDelay : Math.min(delay, retryDelay);
+            } else if (submitter.lagging) {
+                stats.setStatus(submitter.destination + " fell behind, catching up in the next scan.\n");
+                delay = 0;
+            }
+        }
+        if (delay < 0) {
+            return false;
+        }
+        schedule(getApplicationContext(), fullRescan, delay);
+        return true;
+    }
+
+    // Has the drain worker retry whatever failed uploads left in the outboxes
+    private void scheduleOutboxDrain() {
+        int waiting = 0;
+        for (Submitter submitter : submitters) {
+            waiting += submitter.outbox.size();
+        }
+        if (waiting > 0) {
+            stats.setStatus(waiting + " messages waiting in outbox for retry.\n");
+            OutboxDrainWorker.schedule(getApplicationContext());
+        }
+    }
+
+    /**
+     * Commits progress for each destination: journalled messages, then the
+     * cache, then the position the next run starts from, so a stopped or
+     * killed worker loses at most a page.
+     */
+    private void checkpoint(boolean rescanning, SharedPreferences state) {
+        long position = Long.MAX_VALUE;
+        boolean committed = true;
+        for (Submitter submitter : submitters) {
+            // Messages left in the outbox must be on disk before the watermark moves past them
+            long watermark = submitter.tracker.getWatermark();
+            position = Math.min(position, watermark);
+            try {
+                submitter.outbox.sync();
+                if (watermark > submitter.cache.getWatermark()) {
+                    submitter.cache.setWatermark(watermark);
+                }
+            } catch (IOException ioe) {
+                Log.e("worker", "Unable to sync outbox of " + submitter.destination + ", keeping watermark: " + ioe);
+                committed = false;
+            }
+            try {
+                submitter.cache.save();
+            } catch (IOException ioe) {
+                Log.e("worker", "Unable to save cache of " + submitter.destination + ": " + ioe);
+                committed = false;
+            }
+        }
+        if (rescanning && committed) {
+            state.edit().putLong(KEY_RESCAN_CHECKPOINT, position).commit();
+        }
+    }
+
+    /**
+     * Imports an "SMS Backup &amp; Restore" style XML export, streaming it with a
+     * pull parser so memory use does not grow with the size of the file.
+     *
+     * Received messages are read a page at a time into a cursor of inbox
+     * columns and go through the same encoding, cache key, de-duplication and
+     * upload path as inbox rows, so a message is sent once whether it is first
+     * seen in a backup or in the inbox. Progress is checkpointed after every
+     * page by position in the file; an import of the same file resumes there.
+     */
+    private Result importBackup(Uri uri) {
+        Context context = getApplicationContext();
+        SharedPreferences prefs = androidx.preference.PreferenceManager.getDefaultSharedPreferences(context);
+        List<Destination> destinations = Destination.fromSettings(prefs);
+        if (destinations.isEmpty()) {
+            Log.e("worker", "Webhook URL is empty. Please configure in settings.");
+            stats.setStatus("Webhook URL is empty. Please configure in settings.\n");
             return Result.failure();
         }
-        if (!cursor.moveToFirst()) {
-            Log.e("worker", "No SMS messages found in inbox on phone.");
-            service.setStatus("No SMS messages found in inbox on phone.\n");
+        try {
+            SmsUploadService.ensureCacheLoaded(context);
+        } catch (IOException ioe) {
+            Log.e("worker", "Unable to load cache: " + ioe);
+            stats.setStatus("Unable to load cache: " + ioe + "\n");
             return Result.failure();
         }
-        service.setInboxCount(cursor.getCount());
-        service.setStatus("Found " + cursor.getCount() + " messages in SMS inbox.\n");
+        previousAlgorithm = getPreviousAlgorithm(destinations);
 
-        // Now, just focus on those since the last run (using watermark)
-        int count = 0;
-        do {
-            JSONObject msg = encodeMessage(cursor);
-            String sender = "N/A";
-            try {
-                sender = msg.getString("address");
-            } catch (JSONException je) {
-                Log.w("worker", "Error fetching sender: " + je);
+        // Positions are only meaningful within one file
+        SharedPreferences state = context.getSharedPreferences(STATE_PREFS, Context.MODE_PRIVATE);
+        long checkpoint = uri.toString().equals(state.getString(KEY_IMPORT_URI, null))
+                ? state.getLong(KEY_IMPORT_CHECKPOINT, 0) : 0;
+        state.edit().putString(KEY_IMPORT_URI, uri.toString()).putLong(KEY_IMPORT_CHECKPOINT, checkpoint).commit();
+        if (checkpoint > 0) {
+            Log.i("worker", "Resuming import after message " + checkpoint + " of " + uri);
+        }
+
+        // Message n of the file stands in for the inbox _id, as far as the trackers are concerned
+        openSubmitters(prefs, destinations, checkpoint);
+        MessageProjection projection = MessageProjection.forBackup(prefs);
+        String[] columns = projection.getColumns();
+        Object[] row = new Object[columns.length];
+        long[] positions = new long[PAGE_SIZE];
+        MatrixCursor page = new MatrixCursor(columns, PAGE_SIZE);
+
+        long position = 0;
+        int found = 0;
+        boolean imported = false;
+        boolean readable = true;
+        try {
+            try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+                if (in == null) {
+                    throw new FileNotFoundException("Unable to open " + uri);
+                }
+                XmlPullParser parser = Xml.newPullParser();
+                parser.setInput(in, null);
+                int event = parser.getEventType();
+                for (; event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                    if (isStopped() || countActive() == 0) {
+                        break;
+                    }
+                    if (event != XmlPullParser.START_TAG) {
+                        continue;
+                    }
+                    if ("smses".equals(parser.getName())) {
+                        String count = parser.getAttributeValue(null, "count");
+                        if (count != null && count.matches("\\d{1,9}")) {
+                            stats.setInboxCount(Integer.parseInt(count));
+                        }
+                        continue;
+                    }
+                    if (!"sms".equals(parser.getName())) {
+                        continue;
+                    }
+                    // Only received messages, as the inbox scan only reads the inbox
+                    position++;
+                    if (position <= checkpoint || !"1".equals(parser.getAttributeValue(null, "type"))) {
+                        continue;
+                    }
+                    projection.readAttributes(parser, row);
+                    positions[page.getCount()] = position;
+                    page.addRow(row);
+                    found++;
+                    if (page.getCount() == PAGE_SIZE) {
+                        importPage(page, positions, projection);
+                        page.close();
+                        page = new MatrixCursor(columns, PAGE_SIZE);
+                        checkpointImport(state);
+                        stats.setStatus("Read " + found + " received messages from backup so far.\n");
+                    }
+                }
+                imported = event == XmlPullParser.END_DOCUMENT;
+            } catch (IOException | XmlPullParserException e) {
+                Log.e("worker", "Unable to read backup " + uri + ": " + e);
+                stats.setStatus("Unable to read backup: " + e + "\n");
+                readable = false;
+            }
+            if (page.getCount() > 0 && !isStopped() && countActive() > 0) {
+                importPage(page, positions, projection);
             }
+            finishSubmitters(!isStopped());
+        } catch (InterruptedException ie) {
+            Log.w("worker", "Interrupted while uploading: " + ie);
+            cancelSubmitters();
+            Thread.currentThread().interrupt();
+        } finally {
+            page.close();
+        }
+
+        scheduleOutboxDrain();
+        checkpointImport(state);
+
+        if (!readable) {
+            return Result.failure();
+        }
+        if (!imported || countActive() < submitters.size()) {
+            // Picked up from the checkpoint when WorkManager retries
+            stats.setStatus("Import of backup interrupted after " + found + " messages, will resume.\n");
+            return Result.retry();
+        }
+        stats.setStatus("Imported " + found + " received messages from backup.\n");
+        state.edit().remove(KEY_IMPORT_URI).remove(KEY_IMPORT_CHECKPOINT).commit();
+        try {
+            context.getContentResolver().releasePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException se) {
+            // Not persisted, e.g. a file:// URI
+        }
+        return Result.success();
+    }
 
-            //Log.d("worker", msg.toString());
+    // Feeds a page of backup messages through the same path as inbox rows
+    private void importPage(Cursor page, long[] positions, MessageProjection projection) throws InterruptedException {
+        page.moveToPosition(-1);
+        projection.bind(page);
+        bindKeyColumns(page);
+        while (page.moveToNext()) {
+            if (isStopped() || countActive() == 0) {
+                break;
+            }
+            long position = positions[page.getPosition()];
+            stats.increment(Statistics.Counter.MESSAGES_SCANNED);
+            PendingMessage pending = prepareMessage(page, projection, position, begin(position));
+            if (pending != null) {
+                submit(pending);
+            }
+        }
+    }
 
-            // Calculate message hash to use as hash key
-            String objectname;
+    /**
+     * Commits import progress: journalled messages, then the caches, then the
+     * position in the file to resume from, which is where the destination
+     * furthest behind got to. Unlike a scan this leaves the inbox watermarks alone.
+     */
+    private void checkpointImport(SharedPreferences state) {
+        long position = Long.MAX_VALUE;
+        for (Submitter submitter : submitters) {
+            try {
+                submitter.outbox.sync();
+            } catch (IOException ioe) {
+                Log.e("worker", "Unable to sync outbox of " + submitter.destination + ", keeping import checkpoint: " + ioe);
+                return;
+            }
             try {
-                String[] hashableitems = new String[3];
-                hashableitems[0] = String.valueOf(msg.getLong("date"));
-                hashableitems[1] = msg.getString("address");
-                hashableitems[2] = msg.getString("body");
-                String hashable = StringUtils.join(hashableitems);
-                MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                byte[] hash = digest.digest(hashable.getBytes(StandardCharsets.UTF_8));
-                objectname = bytesToHex(hash);
-            }
-            catch(JSONException je) {
-                Log.e("worker", "Could not determine attributes of message to use for hash: " + je);
-                service.setStatus("Message attributes error from '" + sender + "': " + je + "\n");
+                submitter.cache.save();
+            } catch (IOException ioe) {
+                Log.e("worker", "Unable to save cache of " + submitter.destination + ": " + ioe);
+                return;
+            }
+            position = Math.min(position, submitter.tracker.getWatermark());
+        }
+        state.edit().putLong(KEY_IMPORT_CHECKPOINT, position).commit();
+    }
+
+    // Finds the columns the cache key is built from
+    private void bindKeyColumns(Cursor cursor) {
+        dateIndex = cursor.getColumnIndex("date");
+        addressIndex = cursor.getColumnIndex("address");
+        bodyIndex = cursor.getColumnIndex("body");
+        dateSentIndex = cursor.getColumnIndex("date_sent");
+    }
+
+    // Registers a message with each destination that should see it in this run, returning their bits
+    private int begin(long id) {
+        int destinations = 0;
+        for (Submitter submitter : submitters) {
+            if (id > submitter.start && submitter.isActive()) {
+                submitter.tracker.begin(id);
+                destinations |= submitter.bit;
+            }
+        }
+        return destinations;
+    }
+
+    /**
+     * Hashes and de-duplicates the message under the cursor against the cache
+     * of each destination, then encodes it once for all of those without it.
+     *
+     * @param destinations Bits of the destinations to check.
+     * @return The message to upload, or null if there is nothing to upload.
+     */
+    private PendingMessage prepareMessage(Cursor cursor, MessageProjection projection, long id, int destinations) {
+        if (destinations == 0) {
+            messagesResolved(1);
+            return null;
+        }
+
+        // Calculate message hash to use as hash key, before doing any other work on the message
+        if (dateIndex < 0 || addressIndex < 0 || bodyIndex < 0
+                || cursor.isNull(dateIndex) || cursor.isNull(addressIndex) || cursor.isNull(bodyIndex)) {
+            String sender = addressIndex < 0 ? "N/A" : cursor.getString(addressIndex);
+            Log.e("worker", "Could not determine attributes of message " + id + " to use for hash");
+            stats.setStatus("Message attributes error from '" + sender + "'\n");
+            complete(destinations, id);
+            messagesResolved(1);
+            return null;
+        }
+        cursor.copyStringToBuffer(addressIndex, addressBuffer);
+        cursor.copyStringToBuffer(bodyIndex, bodyBuffer);
+        MessageFingerprinter fingerprinter = MessageFingerprinter.get();
+        long date = cursor.getLong(dateIndex);
+        long hashStarted = System.nanoTime();
+        byte[] digest = fingerprinter.fingerprint(cache.getAlgorithm(), date,
+                addressBuffer.data, addressBuffer.sizeCopied, bodyBuffer.data, bodyBuffer.sizeCopied);
+        stats.record(Statistics.Timer.HASH, System.nanoTime() - hashStarted);
+
+        // Look up digest in each destination's cache
+        int needed = 0;
+        for (Submitter submitter : submitters) {
+            if ((destinations & submitter.bit) == 0) {
                 continue;
             }
-            catch(NoSuchAlgorithmException nsae) {
-                Log.e("worker", nsae.toString());
-                service.setStatus("Hashing error from '" + sender + "': " + nsae + "\n");
+            if (submitter.cache.exists(digest)) {
+                submitter.tracker.complete(id);
+            } else {
+                needed |= submitter.bit;
+            }
+        }
+
+        if (needed != 0) {
+            // Only new messages get this far, so keep the key while computing the alternatives below
+            digest = digest.clone();
+
+            // Sent before the fingerprint algorithm changed, or delivered in real time by the
+            // broadcast receiver, which keys on the sender's timestamp; either way only re-key it
+            if (previousAlgorithm != null) {
+                needed = rekey(needed, id, digest, true, fingerprinter.fingerprint(previousAlgorithm, date,
+                        addressBuffer.data, addressBuffer.sizeCopied, bodyBuffer.data, bodyBuffer.sizeCopied));
+            }
+            if (needed != 0 && dateSentIndex >= 0 && !cursor.isNull(dateSentIndex)) {
+                needed = rekey(needed, id, digest, false, fingerprinter.fingerprint(cache.getAlgorithm(),
+                        cursor.getLong(dateSentIndex),
+                        addressBuffer.data, addressBuffer.sizeCopied, bodyBuffer.data, bodyBuffer.sizeCopied));
+            }
+        }
+        if (needed == 0) {
+            stats.increment(Statistics.Counter.CACHE_HITS);
+            messagesResolved(1);
+            return null;
+        }
+        stats.increment(Statistics.Counter.CACHE_MISSES);
+
+        projection.write(cursor, writer);
+        String sender = new String(addressBuffer.data, 0, addressBuffer.sizeCopied);
+        return new PendingMessage(id, writer.toByteArray(), MessageFingerprinter.toHex(digest), sender, needed);
+    }
+
+    /**
+     * Re-keys a message for the destinations that already have it under
+     * another key, i.e. that have been sent it before. A message delivered in
+     * real time may still be in a destination's outbox under the other key;
+     * the drain worker sends it from there, so it is not sent again, and a
+     * later scan re-keys it once acknowledged.
+     *
+     * @param previous Whether the key was made with the previous algorithm.
+     * @return Bits of the destinations still without the message.
+     */
+    private int rekey(int needed, long id, byte[] digest, boolean previous, byte[] key) {
+        String journalled = null;
+        for (Submitter submitter : submitters) {
+            if ((needed & submitter.bit) == 0) {
                 continue;
             }
+            if (previous ? submitter.cache.existsPrevious(key) : submitter.cache.exists(key)) {
+                submitter.cache.add(digest);
+                submitter.tracker.complete(id);
+                needed &= ~submitter.bit;
+            } else if (!previous) {
+                if (journalled == null) {
+                    journalled = MessageFingerprinter.toHex(key);
+                }
+                if (submitter.outbox.contains(journalled)) {
+                    submitter.tracker.complete(id);
+                    needed &= ~submitter.bit;
+                }
+            }
+        }
+        return needed;
+    }
 
-            // Look up objectname in cache
-            if(!cache.exists(objectname)) {
-                // Pass message to webhook
-                try {
-                    WebhookUploader.upload(msg, objectname, prefs);
-                    service.setStatus("Processed message from '" + sender + "'\n");
-                    cache.add(objectname);
-                } catch (WebhookUploader.WebhookUploadException whue) {
-                    Log.e("worker", "Upload exception: " + whue);
-                    service.setStatus("Upload exception processing message from '" + sender + "': " + whue + "'\n");
-                } catch (IllegalArgumentException iae) {
-                    Log.e("worker", "Illegal argument: " + iae);
-                    service.setStatus("Error processing message from '" + sender + "': " + iae + "\n");
+    private void complete(int destinations, long id) {
+        for (Submitter submitter : submitters) {
+            if ((destinations & submitter.bit) != 0) {
+                submitter.tracker.complete(id);
+            }
+        }
+    }
+
+    private void submit(PendingMessage pending) throws InterruptedException {
+        for (Submitter submitter : submitters) {
+            if ((pending.destinations & submitter.bit) != 0) {
+                submitter.submit(pending);
+            }
+        }
+    }
+
+    /**
+     * Delivers prepared messages to one destination: journals them in its
+     * outbox and feeds them to its upload pipeline, one at a time or in
+     * batches, as the delivery mode says. Each destination has its own cache,
+     * watermark tracker, circuit breaker and upload threads, so one that is
+     * slow or down does not hold up the others.
+     */
+    private class Submitter {
+        final Destination destination;
+        final int bit;
+        final DigestCache cache;
+        final Outbox outbox;
+        final WatermarkTracker tracker;
+        final CircuitBreaker breaker = new CircuitBreaker();
+
+        // Messages up to here were dealt with by earlier runs
+        final long start;
+
+        // Set once the destination falls behind the others, which leave it to catch up in a later run
+        volatile boolean lagging = false;
+
+        private final SharedPreferences prefs;
+        private final RetryPolicy retryPolicy;
+        private final WebhookUploader.BatchFormat format;
+        private final int batchSize;
+        private final long flushInterval;
+        private final UploadPipeline<List<PendingMessage>> pipeline;
+
+        // Sends a batch once it has been open for the flush interval, however slowly messages arrive
+        private final ScheduledThreadPoolExecutor flusher;
+
+        // Messages claimed in the outbox and not yet acknowledged or abandoned
+        private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+
+        // Guarded by this
+        private List<PendingMessage> batch = new ArrayList<>();
+        private ScheduledFuture<?> flush;
+
+        Submitter(SharedPreferences prefs, Destination destination, int bit, long start) {
+            this.destination = destination;
+            this.bit = bit;
+            this.cache = DigestCache.getInstance(destination.getId());
+            this.outbox = Outbox.getInstance(getApplicationContext(), destination);
+            this.tracker = new WatermarkTracker(start);
+            this.start = start;
+            this.prefs = prefs;
+            this.retryPolicy = new RetryPolicy(breaker, destination);
+            this.format = getBatchFormat(prefs);
+            this.batchSize = getIntPreference(prefs, PREF_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+            this.flushInterval = getIntPreference(prefs, PREF_BATCH_FLUSH_INTERVAL, DEFAULT_BATCH_FLUSH_INTERVAL);
+            int concurrency = destination.getConcurrency();
+            this.pipeline = new UploadPipeline<>(concurrency, concurrency * PIPELINE_QUEUE_FACTOR, this::deliver);
+            if (format != null) {
+                this.flusher = new ScheduledThreadPoolExecutor(1);
+                this.flusher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            } else {
+                this.flusher = null;
+            }
+        }
+
+        // Whether the destination is still taking messages in this run
+        boolean isActive() {
+            return !lagging && !breaker.isOpen();
+        }
+
+        void submit(PendingMessage pending) throws InterruptedException {
+            if (!outbox.claim(pending.objectname)) {
+                // The outbox drain worker or a real-time delivery is uploading it, and keeps it on failure
+                if (outbox.contains(pending.objectname)) {
+                    tracker.complete(pending.id);
+                } else {
+                    tracker.fail(pending.id);
                 }
+                resolved(pending);
+                return;
             }
+            claimed.add(pending.objectname);
 
-            // Update progress
-            count += 1;
-            service.setProcessedCount(count);
+            // Journal the message so a failed upload is retried from the outbox
+            try {
+                outbox.enqueue(pending.objectname, pending.payload);
+            } catch (IOException ioe) {
+                Log.w("worker", "Unable to add message to outbox: " + ioe);
+            }
 
-        } while (cursor.moveToNext());
+            if (format == null) {
+                dispatch(Collections.singletonList(pending));
+                return;
+            }
+            List<PendingMessage> full = null;
+            synchronized (this) {
+                if (batch.isEmpty()) {
+                    List<PendingMessage> opened = batch;
+                    flush = flusher.schedule(() -> flushBatch(opened), flushInterval, TimeUnit.MILLISECONDS);
+                }
+                batch.add(pending);
+                if (batch.size() >= batchSize) {
+                    full = takeBatch();
+                }
+            }
+            if (full != null) {
+                dispatch(full);
+            }
+        }
 
-        // Flush cache to storage
-        try {
-            Log.i("worker", "Saving cache...");
-            cache.save();
+        // Hands over the open batch and starts a new one
+        private synchronized List<PendingMessage> takeBatch() {
+            if (flush != null) {
+                flush.cancel(false);
+                flush = null;
+            }
+            List<PendingMessage> taken = batch;
+            batch = new ArrayList<>();
+            return taken;
         }
-        catch(IOException ioe) {
-            Log.e("worker", "Unable to save cache: " + ioe);
+
+        // Runs on the flusher thread; the batch may have filled up and gone in the meantime
+        private void flushBatch(List<PendingMessage> opened) {
+            List<PendingMessage> messages;
+            synchronized (this) {
+                if (batch != opened || batch.isEmpty()) {
+                    return;
+                }
+                messages = takeBatch();
+            }
+            try {
+                dispatch(messages);
+            } catch (InterruptedException ie) {
+                abandon(messages, true);
+            }
         }
 
-        return Result.success();
-    }
+        // The last destination standing sets the pace of the scan; others only get so long to keep up
+        private void dispatch(List<PendingMessage> messages) throws InterruptedException {
+            if (countActive() <= 1) {
+                pipeline.submit(messages);
+                return;
+            }
+            if (!pipeline.offer(messages, LAGGING_TIMEOUT)) {
+                Log.w("worker", destination + " is falling behind, leaving it to catch up in a later run");
+                lagging = true;
+                abandon(messages, true);
+            }
+        }
+
+        // Sends whatever is left of the last batch, if asked to, then waits for the uploads
+        void finish(boolean sendRemaining) throws InterruptedException {
+            if (flusher != null) {
+                flusher.shutdown();
+                flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            List<PendingMessage> remaining = takeBatch();
+            if (sendRemaining && isActive() && !remaining.isEmpty()) {
+                pipeline.submit(remaining);
+            }
+            pipeline.awaitCompletion();
+            releaseClaims();
+        }
+
+        void cancel() {
+            if (flusher != null) {
+                flusher.shutdownNow();
+            }
+            pipeline.cancel();
+            releaseClaims();
+        }
+
+        // Hands messages that were never sent back to the outbox drain worker
+        private void releaseClaims() {
+            for (String objectName : claimed) {
+                if (claimed.remove(objectName)) {
+                    outbox.release(objectName);
+                }
+            }
+        }
 
-    private JSONObject encodeMessage(Cursor cursor) {
-        JSONObject msg = new JSONObject();
-        for(int idx = 0; idx < cursor.getColumnCount(); idx++) {
-            String colname = cursor.getColumnName(idx);
-            String colval = cursor.getString(idx);
+        /**
+         * Passes messages to the webhook, singly or as one batch, and only records
+         * them in the cache once the webhook has acknowledged them.
+         */
+        private void deliver(List<PendingMessage> messages) {
+            WebhookUploader uploader = WebhookUploader.getInstance();
+            if (format == null) {
+                for (PendingMessage pending : messages) {
+                    deliver(Collections.singletonList(pending),
+                            () -> uploader.upload(pending.payload, pending.objectname, destination, prefs));
+                }
+            } else {
+                List<byte[]> payloads = new ArrayList<>(messages.size());
+                for (PendingMessage pending : messages) {
+                    payloads.add(pending.payload);
+                }
+                deliver(messages, () -> uploader.uploadBatch(payloads, destination, prefs, format));
+            }
+        }
+
+        private void deliver(List<PendingMessage> messages, RetryPolicy.Upload upload) {
+            String description = (messages.size() == 1
+                    ? "message from '" + messages.get(0).sender + "'"
+                    : "batch of " + messages.size() + " messages")
+                    + (submitters.size() > 1 ? " to " + destination : "");
+            long started = SystemClock.elapsedRealtime();
             try {
-                if (colname.equals("date") || colname.equals("date_sent")) {
-                    msg.put(colname, Long.valueOf(colval));
-                } else {
-                    msg.put(colname, colval);
+                retryPolicy.execute(upload);
+                long elapsed = SystemClock.elapsedRealtime() - started;
+                Log.d("worker", "Uploaded " + description + " in " + elapsed + "ms");
+                stats.setStatus("Processed " + description + " (" + elapsed + "ms)\n");
+                acknowledge(messages);
+            } catch (WebhookUploader.WebhookUploadException whue) {
+                if (whue.getCause() instanceof WebhookUploader.ConflictException) {
+                    // The webhook already has it, which is as good as an acknowledgement
+                    Log.i("worker", "Webhook already has " + description + ": " + whue.getMessage());
+                    acknowledge(messages);
+                    return;
                 }
+                Log.e("worker", "Upload exception: " + whue);
+                stats.setStatus("Upload exception processing " + description + ": " + whue + "'\n");
+                abandon(messages, RetryPolicy.isTransient(whue));
+            } catch (IllegalArgumentException iae) {
+                Log.e("worker", "Illegal argument: " + iae);
+                stats.setStatus("Error processing " + description + ": " + iae + "\n");
+                abandon(messages, false);
+            } catch (InterruptedException ie) {
+                Log.w("worker", "Interrupted while retrying " + description);
+                Thread.currentThread().interrupt();
+                abandon(messages, true);
             }
-            catch(JSONException e) {
-                Log.e("worker", "Could not add '" + colval + "' to JSON object.");
+        }
+
+        private void acknowledge(List<PendingMessage> messages) {
+            for (PendingMessage pending : messages) {
+                cache.add(pending.objectname);
+                outbox.remove(pending.objectname);
+                claimed.remove(pending.objectname);
+                tracker.complete(pending.id);
+                resolved(pending);
             }
         }
-        return msg;
+
+        // After a transient failure journalled messages are left to the outbox drain worker;
+        // anything else holds the watermark back so a later scan sends them again
+        private void abandon(List<PendingMessage> messages, boolean transientFailure) {
+            for (PendingMessage pending : messages) {
+                if (claimed.remove(pending.objectname)) {
+                    outbox.release(pending.objectname);
+                }
+                if (transientFailure && outbox.contains(pending.objectname)) {
+                    tracker.complete(pending.id);
+                } else {
+                    tracker.fail(pending.id);
+                }
+                resolved(pending);
+            }
+        }
+    }
+
+    // Counts a message as processed once every destination it was submitted to has dealt with it
+    private void resolved(PendingMessage pending) {
+        if (pending.outstanding.decrementAndGet() == 0) {
+            messagesResolved(1);
+        }
+    }
+
+    // Called from the reader and upload threads; synchronized so progress never goes backwards
+    private synchronized void messagesResolved(int n) {
+        processedCount += n;
+        stats.setProcessedCount(processedCount);
+    }
+
+    static WebhookUploader.BatchFormat getBatchFormat(SharedPreferences prefs) {
+        String mode = prefs.getString(PREF_DELIVERY_MODE, DELIVERY_MODE_SINGLE);
+        if (DELIVERY_MODE_JSON_ARRAY.equals(mode)) {
+            return WebhookUploader.BatchFormat.JSON_ARRAY;
+        }
+        if (DELIVERY_MODE_NDJSON.equals(mode)) {
+            return WebhookUploader.BatchFormat.NDJSON;
+        }
+        return null;
     }
 
-    private static String bytesToHex(byte[] bytes) {
-        StringBuilder result = new StringBuilder();
-        for (byte b : bytes) result.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
-        return result.toString();
+    static int getIntPreference(SharedPreferences prefs, String key, int defaultValue) {
+        try {
+            int value = Integer.parseInt(prefs.getString(key, String.valueOf(defaultValue)).trim());
+            return value > 0 ? value : defaultValue;
+        } catch (NumberFormatException nfe) {
+            Log.w("worker", "Ignoring invalid value for '" + key + "' setting");
+            return defaultValue;
+        }
+    }
+
+    // A message waiting to be acknowledged by the webhooks, encoded once for all of them
+    private static class PendingMessage {
+        final long id;
+        final byte[] payload;
+        final String objectname;
+        final String sender;
+
+        // Bits of the destinations it is submitted to, and how many of them have yet to deal with it
+        final int destinations;
+        final AtomicInteger outstanding;
+
+        PendingMessage(long id, byte[] payload, String objectname, String sender, int destinations) {
+            this.id = id;
+            this.payload = payload;
+            this.objectname = objectname;
+            this.sender = sender;
+            this.destinations = destinations;
+            this.outstanding = new AtomicInteger(Integer.bitCount(destinations));
+        }
     }
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package org.golder.sms2webhook;
 import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
@@ -10,24 +11,25 @@ import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 
-import androidx.work.Constraints;
-import androidx.work.Data;
-import androidx.work.NetworkType;
-import androidx.work.OneTimeWorkRequest;
-import androidx.work.WorkManager;
+import androidx.preference.PreferenceManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class SmsUploadService extends IntentService {
 
     // Use a final constant for the service name
     public static final String SERVICE_NAME = "SmsUploadService";
     private static final String TAG = "SmsUploadService";
+    private static final String CACHE_FILE_NAME = "cache";
+    static final String PREF_FINGERPRINT_ALGORITHM = "fingerprint_algorithm";
 
     private final IBinder binder = new LocalBinder();
     private DigestCache cache;
     private Statistics stats;
+    private SmsChangeObserver observer;
 
     public SmsUploadService() {
         super(SERVICE_NAME);
@@ -38,15 +40,19 @@ public class SmsUploadService extends IntentService {
         super.onCreate();
         cache = DigestCache.getInstance();
         stats = Statistics.getInstance();
+
+        // Pick up messages however they reach the provider, not only via SMS_RECEIVED
+        observer = new SmsChangeObserver(this);
+        observer.register();
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         showServiceStartingToast();
-        final String CACHE_FILE_NAME = "cache";
-        cache.setFilename(getCacheDir().getAbsolutePath() + File.separator + CACHE_FILE_NAME);
-        loadCache();
+        // Keep file I/O off the main thread; workers wait for the load to finish
+        new Thread(this::loadCache, "cache-loader").start();
         refresh();
+        OutboxDrainWorker.schedule(this);
 
         return START_REDELIVER_INTENT;
     }
@@ -55,12 +61,52 @@ public class SmsUploadService extends IntentService {
         Toast.makeText(this, getString(R.string.service_starting), Toast.LENGTH_SHORT).show();
     }
 
+    /**
+     * Points the digest caches of the configured destinations at their files
+     * and loads them, unless that has already happened in this process.
+     * Workers call this too, since WorkManager may run them after process death
+     * without the service ever being started. A cache is reloaded if the
+     * configured fingerprint algorithm has changed since.
+     *
+     * @param context Any context, used to locate the app's cache dir.
+     * @throws IOException If a cache file cannot be read.
+     */
+    static void ensureCacheLoaded(Context context) throws IOException {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        FingerprintAlgorithm algorithm = FingerprintAlgorithm.forName(
+                prefs.getString(PREF_FINGERPRINT_ALGORITHM, FingerprintAlgorithm.SHA256.getName()));
+
+        ensureCacheLoaded(context, DigestCache.getInstance(), CACHE_FILE_NAME, algorithm);
+        for (Destination destination : Destination.fromSettings(prefs)) {
+            if (!destination.isPrimary()) {
+                ensureCacheLoaded(context, DigestCache.getInstance(destination.getId()),
+                        destination.fileName(CACHE_FILE_NAME), algorithm);
+            }
+        }
+    }
+
+    private static void ensureCacheLoaded(Context context, DigestCache cache, String fileName,
+                                          FingerprintAlgorithm algorithm) throws IOException {
+        synchronized (cache) {
+            if (cache.isLoaded() && cache.getAlgorithm() != algorithm) {
+                Log.i(TAG, "Fingerprint algorithm changed to " + algorithm.getName() + ", reloading " + fileName);
+                cache.save();
+                cache.setAlgorithm(algorithm);
+                cache.load();
+            } else if (!cache.isLoaded()) {
+                cache.setFilename(context.getCacheDir().getAbsolutePath() + File.separator + fileName);
+                cache.setAlgorithm(algorithm);
+                cache.load();
+            }
+        }
+    }
+
     private void loadCache() {
         try {
-            cache.load();
+            ensureCacheLoaded(this);
         } catch (IOException ioe) {
             Log.e(TAG, "Unable to load cache: " + ioe);
-            showUnableToLoadCacheToast();
+            new Handler(Looper.getMainLooper()).post(this::showUnableToLoadCacheToast);
         }
     }
 
@@ -80,7 +126,10 @@ public class SmsUploadService extends IntentService {
 
     @Override
     public void onDestroy() {
+        observer.unregister();
+        WebhookUploader.shutdown();
         showServiceDoneToast();
+        super.onDestroy();
     }
 
     private void showServiceDoneToast() {
@@ -95,43 +144,52 @@ public class SmsUploadService extends IntentService {
 
     public void clearCache() {
         Log.i(TAG, "Clearing cache...");
-        cache.clear();
+        for (DigestCache destinationCache : getCaches()) {
+            destinationCache.clear();
+        }
     }
 
     public void saveCache() {
         Log.i(TAG, "Saving cache...");
         try {
-            cache.save();
+            for (DigestCache destinationCache : getCaches()) {
+                destinationCache.save();
+            }
         } catch (IOException ioe) {
             Log.e(TAG, "Unable to save cache: " + ioe);
             showUnableToSaveCacheToast();
         }
     }
 
+    // The primary destination's cache, then those of the other destinations that have been loaded
+    private List<DigestCache> getCaches() {
+        List<DigestCache> caches = new ArrayList<>();
+        caches.add(cache);
+        for (Destination destination : Destination.fromSettings(PreferenceManager.getDefaultSharedPreferences(this))) {
+            DigestCache destinationCache = DigestCache.getInstance(destination.getId());
+            if (!destination.isPrimary() && destinationCache.isLoaded()) {
+                caches.add(destinationCache);
+            }
+        }
+        return caches;
+    }
+
     private void showUnableToSaveCacheToast() {
         Toast.makeText(this, getString(R.string.unable_to_save_cache), Toast.LENGTH_SHORT).show();
     }
 
     public void refresh() {
-        Log.i(TAG, "Running SMS Store Worker...");
-        OneTimeWorkRequest request = buildWorkRequest();
-        WorkManager.getInstance(this).enqueue(request);
+        refresh(false);
     }
 
-    private OneTimeWorkRequest buildWorkRequest() {
-        Constraints.Builder builder = new Constraints.Builder()
-                .setRequiredNetworkType(NetworkType.CONNECTED);
-        Data.Builder data = new Data.Builder();
-        return new OneTimeWorkRequest.Builder(SmsStoreWorker.class)
-                        .addTag("refresh")
-                        .setInputData(data.build())
-                        .setConstraints(builder.build())
-                        .build();
+    public void refresh(boolean fullRescan) {
+        Log.i(TAG, "Running SMS Store Worker" + (fullRescan ? " (full rescan)" : "") + "...");
+        SmsStoreWorker.schedule(this, fullRescan, 0);
     }
 
     public void setStatus(String status) {
         Log.i(TAG, "STATUS: " + status);
-        new Handler(Looper.getMainLooper()).post(() -> stats.setStatus(status));
+        stats.setStatus(status);
     }
 
     public void setInboxCount(int count) {
@@ -1,25 +1,73 @@
 package org.golder.sms2webhook;
 
-import android.annotation.SuppressLint;
-import android.app.Activity;
-import android.widget.ProgressBar;
-import android.widget.TextView;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Progress of the current run and a {@link StatusLog} of recent status lines,
+ * for the UI, plus a registry of metrics kept for the life of the process.
+ *
+ * Nothing here touches views: writers only store values, and the UI reads
+ * them on its own schedule (see {@link MainActivity}), so reporting progress
+ * costs the same per message whether or not anything is on screen.
+ *
+ * Metrics are counters and latency histograms built on {@link LongAdder}, so
+ * any thread can record them without locking, contending or allocating.
+ */
 public class Statistics {
-    private int inboxCount = 0;
-    private int processedCount = 0;
 
-    private String status;
+    /**
+     * Counted events.
+     */
+    public enum Counter {
+        /** Inbox rows read by scans. */
+        MESSAGES_SCANNED,
+        /** Messages found in the digest cache, i.e. already delivered. */
+        CACHE_HITS,
+        /** Messages not in the digest cache, i.e. new. */
+        CACHE_MISSES,
+        /** HTTP requests made to the webhook. */
+        REQUESTS,
+        /** HTTP requests that failed or were refused. */
+        REQUEST_FAILURES,
+        /** Request body bytes sent, after any compression. */
+        BYTES_SENT,
+        /** Uploads retried after a failure. */
+        RETRIES
+    }
+
+    /**
+     * Timed operations.
+     */
+    public enum Timer {
+        /** A whole inbox scan. */
+        SCAN,
+        /** Computing one message fingerprint. */
+        HASH,
+        /** One HTTP request to the webhook. */
+        UPLOAD
+    }
+
+    private volatile int inboxCount = 0;
+    private volatile int processedCount = 0;
 
-    private TextView textView;
-    private ProgressBar progress;
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final LatencyHistogram[] timers = new LatencyHistogram[Timer.values().length];
 
-    private final Object lock = new Object();
+    private final StatusLog statusLog = new StatusLog();
 
-    @SuppressLint("StaticFieldLeak")
     private static volatile Statistics instance;
     private static final Object monitor = new Object();
 
+    private Statistics() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new LatencyHistogram();
+        }
+    }
+
     public static Statistics getInstance() {
         if (instance == null) {
             synchronized (monitor) {
@@ -31,53 +79,103 @@ public class Statistics {
         return instance;
     }
 
-    public void setWidgets(TextView textView, ProgressBar progress) {
-        this.textView = textView;
-        this.progress = progress;
-    }
-
     public void setStatus(String status) {
-        this.status = status;
-        notifyListeners();
+        statusLog.append(status);
     }
 
     public void setInboxCount(int count) {
-        synchronized (lock) {
         this.inboxCount = count;
-        }
-        notifyListeners();
-        if (progress != null) {
-            progress.setMax(count);
-        }
     }
 
     public void setProcessedCount(int count) {
-        synchronized (lock) {
-            this.processedCount = count;
-}
-        if (progress != null) {
-            progress.setProgress(count);
-        }
-        notifyListeners();
+        this.processedCount = count;
     }
 
-    private void notifyListeners() {
-        if (textView != null) {
-            new Activity().runOnUiThread(() -> textView.append(status));
-        } else {
-            textView = null;
-        }
+    public StatusLog getStatusLog() {
+        return statusLog;
     }
 
     public int getInboxCount() {
-        synchronized (lock) {
-            return inboxCount;
-        }
+        return inboxCount;
     }
 
     public int getProcessedCount() {
-        synchronized (lock) {
-            return processedCount;
+        return processedCount;
+    }
+
+    /**
+     * Counts one event.
+     *
+     * @param counter The event.
+     */
+    public void increment(Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    /**
+     * Counts several events, or an amount such as bytes.
+     *
+     * @param counter The event.
+     * @param amount  The amount to add.
+     */
+    public void add(Counter counter, long amount) {
+        counters[counter.ordinal()].add(amount);
+    }
+
+    /**
+     * Returns a counter's total so far.
+     *
+     * @param counter The event.
+     * @return The total.
+     */
+    public long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Records how long an operation took.
+     *
+     * @param timer The operation.
+     * @param nanos The duration, in nanoseconds, e.g. from {@link System#nanoTime()}.
+     */
+    public void record(Timer timer, long nanos) {
+        timers[timer.ordinal()].record(nanos);
+    }
+
+    /**
+     * Returns the histogram of an operation's durations.
+     *
+     * @param timer The operation.
+     * @return The histogram.
+     */
+    public LatencyHistogram getHistogram(Timer timer) {
+        return timers[timer.ordinal()];
+    }
+
+    /**
+     * Describes every metric, one per line, for logging or display.
+     *
+     * @return The description.
+     */
+    public String describeMetrics() {
+        StringBuilder text = new StringBuilder();
+        for (Counter counter : Counter.values()) {
+            text.append(counter.name().toLowerCase(Locale.ROOT)).append(": ").append(get(counter)).append('\n');
+        }
+        long hits = get(Counter.CACHE_HITS);
+        long lookups = hits + get(Counter.CACHE_MISSES);
+        if (lookups > 0) {
+            text.append("cache_hit_ratio: ").append(String.format(Locale.ROOT, "%.3f", (double) hits / lookups)).append('\n');
+        }
+        for (Timer timer : Timer.values()) {
+            LatencyHistogram histogram = getHistogram(timer);
+            text.append(timer.name().toLowerCase(Locale.ROOT)).append("_us: count=").append(histogram.getCount())
+                    .append(String.format(Locale.ROOT, " mean=%.1f p50=%.1f p99=%.1f",
+                            histogram.getMean() / 1000.0,
+                            histogram.getPercentile(50) / 1000.0,
+                            histogram.getPercentile(99) / 1000.0))
+                    .append('\n');
         }
+        return text.toString();
     }
 }
\ No newline at end of file
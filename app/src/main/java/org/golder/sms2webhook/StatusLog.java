@@ -0,0 +1,67 @@
+package org.golder.sms2webhook;
+
+/**
+ * Fixed-capacity ring buffer of status lines for the UI.
+ *
+ * Writers append from any thread; once full, each line overwrites the oldest,
+ * so appending costs the same however long the app has been running and the
+ * log never holds more than {@link #CAPACITY} lines. Readers poll with
+ * {@link #getVersion()} and copy out a snapshot only when it has changed, so
+ * any number of lines written between two UI frames cost one redraw.
+ */
+public class StatusLog {
+
+    // Lines kept for display
+    static final int CAPACITY = 200;
+
+    private final String[] lines = new String[CAPACITY];
+
+    // Lines ever appended; the next line goes in lines[written % CAPACITY]
+    private long written = 0;
+
+    /**
+     * Appends a line, dropping the oldest if the log is full.
+     *
+     * @param line The line. A trailing newline is removed.
+     */
+    public void append(String line) {
+        if (line == null) {
+            return;
+        }
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) == '\n') {
+            end--;
+        }
+        line = line.substring(0, end);
+        synchronized (lines) {
+            lines[(int) (written % CAPACITY)] = line;
+            written++;
+        }
+    }
+
+    /**
+     * @return A number that changes whenever a line is appended.
+     */
+    public long getVersion() {
+        synchronized (lines) {
+            return written;
+        }
+    }
+
+    /**
+     * Copies the lines currently held, oldest first, one per line.
+     *
+     * @param into Builder to fill; it is cleared first.
+     * @return The version of the log copied.
+     */
+    public long snapshot(StringBuilder into) {
+        into.setLength(0);
+        synchronized (lines) {
+            long first = Math.max(0, written - CAPACITY);
+            for (long i = first; i < written; i++) {
+                into.append(lines[(int) (i % CAPACITY)]).append('\n');
+            }
+            return written;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.golder.sms2webhook;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pipeline handing items from a single producer to a fixed number of
+ * upload threads. Once the queue is full, {@link #submit(Object)} blocks until
+ * an upload thread frees a slot, so the producer never runs far ahead, and
+ * {@link #offer(Object, long)} gives up after a while, so a producer feeding
+ * several pipelines need not wait for the slowest.
+ *
+ * @param <T> The type of item passed down the pipeline.
+ */
+public class UploadPipeline<T> {
+
+    private static final String TAG = "pipeline";
+
+    /**
+     * Work done on each item by the upload threads.
+     *
+     * @param <T> The type of item passed down the pipeline.
+     */
+    public interface Stage<T> {
+        void process(T item);
+    }
+
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final Stage<T> stage;
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param workers       The number of upload threads.
+     * @param queueCapacity The number of items allowed to wait for an upload thread.
+     * @param stage         The work done on each item.
+     */
+    public UploadPipeline(int workers, int queueCapacity, Stage<T> stage) {
+        if (workers < 1 || queueCapacity < 0) {
+            throw new IllegalArgumentException("Pipeline needs at least one worker and a non-negative queue");
+        }
+        this.executor = Executors.newFixedThreadPool(workers);
+        this.slots = new Semaphore(workers + queueCapacity);
+        this.stage = stage;
+    }
+
+    /**
+     * Queues an item for upload, blocking while the pipeline is full.
+     *
+     * @param item The item to process.
+     * @throws InterruptedException If interrupted while waiting for space.
+     */
+    public void submit(T item) throws InterruptedException {
+        slots.acquire();
+        execute(item);
+    }
+
+    /**
+     * Queues an item for upload, waiting up to the given time for space.
+     *
+     * @param item    The item to process.
+     * @param timeout How long to wait for space, in milliseconds.
+     * @return True if the item was queued, false if the pipeline stayed full.
+     * @throws InterruptedException If interrupted while waiting for space.
+     */
+    public boolean offer(T item, long timeout) throws InterruptedException {
+        if (!slots.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        execute(item);
+        return true;
+    }
+
+    // Hands an item to the upload threads, once a slot has been taken for it
+    private void execute(T item) {
+        try {
+            executor.execute(() -> {
+                try {
+                    stage.process(item);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unexpected error in upload stage: " + e);
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops accepting items and waits for everything queued to be processed.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            Log.d(TAG, "Waiting for uploads to finish...");
+        }
+    }
+
+    /**
+     * Abandons queued items and interrupts uploads in progress.
+     */
+    public void cancel() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,93 @@
+package org.golder.sms2webhook;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tracks which inbox messages of a run have been dealt with, so the watermark
+ * is only ever advanced over an unbroken run of acknowledged messages, even when
+ * messages are acknowledged out of order (e.g. in batches).
+ */
+public class WatermarkTracker {
+
+    private static final int PENDING = 0;
+    private static final int DONE = 1;
+    private static final int FAILED = 2;
+
+    // Message _id to state, for messages not yet folded into the watermark
+    private final TreeMap<Long, Integer> pending = new TreeMap<>();
+
+    private long watermark;
+
+    // Lowest _id that failed in this run; the watermark never passes it, so later messages are not tracked
+    private long failed = Long.MAX_VALUE;
+
+    /**
+     * Creates a tracker starting at the given watermark.
+     *
+     * @param watermark The highest _id already known to be processed.
+     */
+    public WatermarkTracker(long watermark) {
+        this.watermark = watermark;
+    }
+
+    /**
+     * Registers a message as in flight. Messages must be registered in ascending _id order.
+     * Messages after a failure are not tracked, as the watermark cannot reach them.
+     *
+     * @param id The message _id.
+     */
+    public synchronized void begin(long id) {
+        if (id < failed) {
+            pending.put(id, PENDING);
+        }
+    }
+
+    /**
+     * Marks a message as processed.
+     *
+     * @param id The message _id.
+     */
+    public synchronized void complete(long id) {
+        if (pending.containsKey(id)) {
+            pending.put(id, DONE);
+            advance();
+        }
+    }
+
+    /**
+     * Marks a message as failed, which stops the watermark just before it for this run.
+     *
+     * @param id The message _id.
+     */
+    public synchronized void fail(long id) {
+        if (pending.containsKey(id)) {
+            pending.put(id, FAILED);
+            failed = id;
+            // Nothing after the failure can be folded into the watermark any more
+            pending.tailMap(id, false).clear();
+        }
+    }
+
+    /**
+     * Returns the highest _id such that it and every message before it has been processed.
+     *
+     * @return The current watermark.
+     */
+    public synchronized long getWatermark() {
+        return watermark;
+    }
+
+    private void advance() {
+        Iterator<Map.Entry<Long, Integer>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Integer> entry = it.next();
+            if (entry.getValue() != DONE) {
+                break;
+            }
+            watermark = Math.max(watermark, entry.getKey());
+            it.remove();
+        }
+    }
+}
@@ -1,121 +1,310 @@
 package org.golder.sms2webhook;
 
 import android.content.SharedPreferences;
-import org.json.JSONObject;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
 
 /**
  * Handles uploading data to a webhook URL.
+ *
+ * A single long-lived instance owns a pooled HTTP client, so connections (and their
+ * TLS sessions) are kept alive and reused between messages, and HTTP/2 is used where
+ * the server supports it. The instance is released via {@link #shutdown()}.
+ *
+ * Request bodies can optionally be sent gzipped ({@code Content-Encoding: gzip}),
+ * which pays off most for batches of repetitive JSON; bodies under a threshold
+ * are always sent as they are.
  */
 public class WebhookUploader {
 
     private static final String TAG = WebhookUploader.class.getSimpleName();
 
+    private static final MediaType CONTENT_TYPE_JSON = MediaType.get("application/json; charset=utf-8");
+    private static final MediaType CONTENT_TYPE_NDJSON = MediaType.get("application/x-ndjson; charset=utf-8");
+
+    // Setting turning on gzip compression of request bodies
+    static final String PREF_COMPRESS_UPLOADS = "compress_uploads";
+
+    // Bodies smaller than this are sent as they are, since gzip's overhead would outweigh the saving
+    private static final int COMPRESSION_THRESHOLD = 1024; // bytes
+
+    // Client settings
+    private static final long CONNECT_TIMEOUT = 15; // seconds
+    private static final long READ_TIMEOUT = 30; // seconds
+    private static final long WRITE_TIMEOUT = 30; // seconds
+    private static final int MAX_IDLE_CONNECTIONS = 16; // enough for the upload threads of a few destinations
+    private static final long KEEP_ALIVE_DURATION = 5; // minutes
+
+    // Singleton instance
+    private static WebhookUploader instance;
+
+    // Synchronization monitor
+    private static final Object monitor = new Object();
+
+    private final OkHttpClient client;
+
+    /**
+     * Request body formats available for batched delivery.
+     */
+    public enum BatchFormat {
+        /** A single JSON array holding every message. */
+        JSON_ARRAY,
+        /** One JSON object per line (newline-delimited JSON). */
+        NDJSON
+    }
+
+    // Private constructor to prevent instantiation
+    private WebhookUploader() {
+        this.client = new OkHttpClient.Builder()
+                .connectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS)
+                .readTimeout(READ_TIMEOUT, TimeUnit.SECONDS)
+                .writeTimeout(WRITE_TIMEOUT, TimeUnit.SECONDS)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION, TimeUnit.MINUTES))
+                .retryOnConnectionFailure(true)
+                .build();
+    }
+
+    /**
+     * Returns the instance of the WebhookUploader class, creating it if needed.
+     *
+     * @return The instance of the WebhookUploader class.
+     */
+    public static WebhookUploader getInstance() {
+        synchronized (monitor) {
+            if (instance == null) {
+                instance = new WebhookUploader();
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Closes pooled connections and stops the client's threads. A later call
+     * to {@link #getInstance()} creates a fresh instance.
+     */
+    public static void shutdown() {
+        synchronized (monitor) {
+            if (instance == null) {
+                return;
+            }
+            instance.client.dispatcher().executorService().shutdown();
+            instance.client.connectionPool().evictAll();
+            instance = null;
+        }
+    }
+
     /**
      * Uploads data to a webhook URL.
      *
-     * @param msg        the JSON data to be uploaded
-     * @param objectName the name of the object being uploaded
-     * @param prefs      the SharedPreferences instance containing the webhook URL
+     * @param payload     the JSON payload to be uploaded, UTF-8 encoded
+     * @param objectName  the name of the object being uploaded
+     * @param destination the webhook to upload to
+     * @param prefs       the SharedPreferences instance containing the upload settings
      * @throws WebhookUploadException if an error occurs during the upload process
      */
-    public static void upload(JSONObject msg, String objectName, SharedPreferences prefs) throws WebhookUploadException {
-        validateInputs(msg, objectName, prefs);
-        String webhookUrl = getWebhookUrl(prefs);
+    public void upload(byte[] payload, String objectName, Destination destination, SharedPreferences prefs)
+            throws WebhookUploadException {
+        validateInputs(payload, objectName, destination, prefs);
 
-        try {
-            HttpURLConnection conn = getHttpURLConnection(webhookUrl);
-            sendPostRequest(conn, msg);
-            handleResponseCode(conn, objectName);
-        } catch (WebhookUploadException e) {
-            throw e; // Rethrow WebhookUploadException
-        } catch (Exception e) {
-            throw new WebhookUploadException("Unexpected error during upload: " + e.getMessage(), e);
-        } finally {
-            disconnectConnection();
-        }
+        post(destination.getUrl(), RequestBody.create(payload, CONTENT_TYPE_JSON), objectName, prefs);
     }
 
-    private static void validateInputs(JSONObject msg, String objectName, SharedPreferences prefs) throws WebhookUploadException {
-        if (msg == null || objectName == null || objectName.isEmpty() || prefs == null) {
+    /**
+     * Uploads several messages to a webhook URL in a single request.
+     *
+     * @param payloads    the JSON payloads to be uploaded, UTF-8 encoded
+     * @param destination the webhook to upload to
+     * @param prefs       the SharedPreferences instance containing the upload settings
+     * @param format      the request body format
+     * @throws WebhookUploadException if an error occurs during the upload process
+     */
+    public void uploadBatch(List<byte[]> payloads, Destination destination, SharedPreferences prefs, BatchFormat format)
+            throws WebhookUploadException {
+        if (payloads == null || payloads.isEmpty() || destination == null || prefs == null || format == null) {
             throw new WebhookUploadException("Invalid arguments provided");
         }
+
+        post(destination.getUrl(), new BatchBody(payloads, format), payloads.size() + " messages", prefs);
     }
 
-    private static String getWebhookUrl(SharedPreferences prefs) throws WebhookUploadException {
-        String webhookUrl = prefs.getString("webhook_url", null);
-        if (webhookUrl == null || webhookUrl.isEmpty()) {
-            throw new WebhookUploadException("Webhook URL not set in SharedPreferences");
+    private static void validateInputs(byte[] payload, String objectName, Destination destination,
+                                       SharedPreferences prefs) throws WebhookUploadException {
+        if (payload == null || objectName == null || objectName.isEmpty() || destination == null || prefs == null) {
+            throw new WebhookUploadException("Invalid arguments provided");
         }
-        return webhookUrl;
     }
 
-    private static HttpURLConnection getHttpURLConnection(String webhookUrl) throws MalformedURLException, WebhookUploadException {
-            URL url = new URL(webhookUrl);
+    private void post(String webhookUrl, RequestBody body, String objectName, SharedPreferences prefs) throws WebhookUploadException {
+        Request.Builder builder;
         try {
-            return (HttpURLConnection) url.openConnection();
+            builder = new Request.Builder().url(webhookUrl);
+        } catch (IllegalArgumentException e) {
+            throw new WebhookUploadException("Invalid webhook URL: " + e.getMessage(), e);
+        }
+
+        RequestBody compressed = prefs.getBoolean(PREF_COMPRESS_UPLOADS, false) ? compress(body) : null;
+        if (compressed != null) {
+            builder.header("Content-Encoding", "gzip").post(compressed);
+        } else {
+            builder.post(body);
+        }
+        Request request = builder.build();
+
+        // Closing the response returns the connection to the pool
+        Statistics stats = Statistics.getInstance();
+        long started = System.nanoTime();
+        try (Response response = client.newCall(request).execute()) {
+            stats.record(Statistics.Timer.UPLOAD, System.nanoTime() - started);
+            stats.increment(Statistics.Counter.REQUESTS);
+            stats.add(Statistics.Counter.BYTES_SENT, Math.max(0, request.body().contentLength()));
+            if (response.code() != HttpURLConnection.HTTP_OK && response.code() != HttpURLConnection.HTTP_CONFLICT) {
+                stats.increment(Statistics.Counter.REQUEST_FAILURES);
+            }
+            handleResponseCode(response, objectName);
         } catch (IOException e) {
-            throw new WebhookUploadException("Error opening connection to webhook URL: " + e.getMessage(), e);
+            stats.increment(Statistics.Counter.REQUESTS);
+            stats.increment(Statistics.Counter.REQUEST_FAILURES);
+            throw new WebhookUploadException("Error sending post request: " + e.getMessage(), e);
         }
     }
 
-    private static void sendPostRequest(HttpURLConnection conn, JSONObject msg) throws WebhookUploadException {
+    // Gzips a body worth compressing, returning null if it is too small or does not shrink
+    private static RequestBody compress(RequestBody body) throws WebhookUploadException {
         try {
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json; utf-8");
-            conn.setDoOutput(true);
-
-                byte[] input = msg.toString().getBytes(StandardCharsets.UTF_8);
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(input, 0, input.length);
+            long length = body.contentLength();
+            if (length >= 0 && length < COMPRESSION_THRESHOLD) {
+                return null;
+            }
+            Buffer compressed = new Buffer();
+            try (BufferedSink sink = Okio.buffer(new GzipSink(compressed))) {
+                body.writeTo(sink);
             }
+            if (length >= 0 && compressed.size() >= length) {
+                return null;
+            }
+            return RequestBody.create(compressed.readByteString(), body.contentType());
         } catch (IOException e) {
-            throw new WebhookUploadException("Error sending post request: " + e.getMessage(), e);
+            throw new WebhookUploadException("Error compressing request: " + e.getMessage(), e);
         }
     }
 
-    private static void handleResponseCode(HttpURLConnection conn, String objectName) throws WebhookUploadException {
-        int responseCode = getResponseCode(conn);
-            if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
+    private static void handleResponseCode(Response response, String objectName) throws WebhookUploadException {
+        int responseCode = response.code();
+        if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
             throw new WebhookUploadException("Object already exists: " + objectName, new ConflictException());
-            } else if (responseCode != HttpURLConnection.HTTP_OK) {
-            throw new WebhookUploadException("Failed to upload, response code: " + responseCode);
-            }
+        } else if (responseCode != HttpURLConnection.HTTP_OK) {
+            throw new WebhookUploadException("Failed to upload, response code: " + responseCode,
+                    responseCode, getRetryAfter(response));
         }
+    }
 
-    private static int getResponseCode(HttpURLConnection conn) throws WebhookUploadException {
+    // Parses a Retry-After header given either as delay seconds or as an HTTP date
+    private static long getRetryAfter(Response response) {
+        String value = response.header("Retry-After");
+        if (value == null || value.isEmpty()) {
+            return -1;
+        }
         try {
-            return conn.getResponseCode();
-        } catch (IOException e) {
-            throw new WebhookUploadException("Error getting response code: " + e.getMessage(), e);
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim())));
+        } catch (NumberFormatException nfe) {
+            Date date = response.headers().getDate("Retry-After");
+            return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
         }
     }
 
-    private static void disconnectConnection() {
-        try {
-            HttpURLConnection conn = (HttpURLConnection) WebhookUploader.class.getDeclaredField("conn").get(null);
-            if (conn != null) {
-                conn.disconnect();
+    // Writes encoded payloads straight to the connection as a JSON array or as NDJSON,
+    // without joining them into one buffer first. Can be written more than once, for retries.
+    private static class BatchBody extends RequestBody {
+        private final List<byte[]> payloads;
+        private final BatchFormat format;
+
+        BatchBody(List<byte[]> payloads, BatchFormat format) {
+            this.payloads = payloads;
+            this.format = format;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return format == BatchFormat.NDJSON ? CONTENT_TYPE_NDJSON : CONTENT_TYPE_JSON;
+        }
+
+        @Override
+        public long contentLength() {
+            long length = 0;
+            for (byte[] payload : payloads) {
+                length += payload.length + 1;
             }
-        } catch (Exception e) {
-            // Ignore exception
+            // A separator or newline after each payload, plus the brackets less one comma
+            return format == BatchFormat.NDJSON ? length : length + 1;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            if (format == BatchFormat.NDJSON) {
+                for (byte[] payload : payloads) {
+                    sink.write(payload).writeByte('\n');
+                }
+                return;
+            }
+            sink.writeByte('[');
+            for (int i = 0; i < payloads.size(); i++) {
+                if (i > 0) {
+                    sink.writeByte(',');
+                }
+                sink.write(payloads.get(i));
+            }
+            sink.writeByte(']');
         }
     }
 
     // Custom exception classes
     public static class WebhookUploadException extends Exception {
+        private final int responseCode;
+        private final long retryAfter;
+
         public WebhookUploadException(String message) {
-            super(message);
+            this(message, -1, -1);
         }
 
         public WebhookUploadException(String message, Throwable cause) {
             super(message, cause);
+            this.responseCode = -1;
+            this.retryAfter = -1;
+        }
+
+        public WebhookUploadException(String message, int responseCode, long retryAfter) {
+            super(message);
+            this.responseCode = responseCode;
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * @return The HTTP response code, or -1 if no response was received.
+         */
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        /**
+         * @return The delay requested by a Retry-After header in milliseconds, or -1 if none.
+         */
+        public long getRetryAfter() {
+            return retryAfter;
         }
     }
 
@@ -124,4 +313,4 @@ public class WebhookUploader {
             super("Object already exists");
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,179 @@
+package org.golder.sms2webhook;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.preference.PreferenceManager;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.work.ListenableWorker;
+import androidx.work.testing.TestWorkerBuilder;
+import androidx.work.testing.WorkManagerTestInitHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * End-to-end throughput of a full inbox scan: a synthetic inbox is read by a
+ * real {@link SmsStoreWorker} run and uploaded over HTTP to a local mock
+ * webhook. Reports messages per second, upload latency and peak heap.
+ *
+ * Runs with a small inbox by default, as a smoke test. Set system properties
+ * through Gradle to measure a real backfill, e.g.
+ * {@code ./gradlew :app:testDebugUnitTest --tests '*BackfillThroughputTest' -Dharness.messages=100000}.
+ * See {@link #setUp()} for the other properties.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BackfillThroughputTest {
+
+    // How often to sample heap use while the scan runs
+    private static final long HEAP_SAMPLE_INTERVAL = 10; // milliseconds
+
+    private int messages;
+    private int minBodyLength;
+    private int maxBodyLength;
+    private double nonAsciiRatio;
+    private long minLatency;
+    private long maxLatency;
+    private double errorRate;
+    private double conflictRate;
+    private String deliveryMode;
+    private int concurrency;
+    private boolean compress;
+
+    private MockWebServer server;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        messages = Integer.getInteger("harness.messages", 2000);
+        minBodyLength = Integer.getInteger("harness.minBodyLength", 20);
+        maxBodyLength = Integer.getInteger("harness.maxBodyLength", 320);
+        nonAsciiRatio = Double.parseDouble(System.getProperty("harness.nonAsciiRatio", "0.1"));
+        minLatency = Long.getLong("harness.minLatency", 5);
+        maxLatency = Long.getLong("harness.maxLatency", 20);
+        errorRate = Double.parseDouble(System.getProperty("harness.errorRate", "0"));
+        conflictRate = Double.parseDouble(System.getProperty("harness.conflictRate", "0"));
+        deliveryMode = System.getProperty("harness.deliveryMode", SmsStoreWorker.DELIVERY_MODE_SINGLE);
+        concurrency = Integer.getInteger("harness.concurrency", 4);
+        compress = Boolean.getBoolean("harness.compress");
+
+        server = new MockWebServer();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        executor.shutdown();
+        WebhookUploader.shutdown();
+    }
+
+    @Test
+    public void backfill() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        WorkManagerTestInitHelper.initializeTestWorkManager(context);
+
+        SyntheticSmsProvider provider = Robolectric.setupContentProvider(SyntheticSmsProvider.class, "sms");
+        provider.fill(messages, minBodyLength, maxBodyLength, nonAsciiRatio, 42);
+
+        MockWebhook webhook = new MockWebhook(minLatency, maxLatency, errorRate, conflictRate);
+        server.setDispatcher(webhook);
+        server.start();
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        prefs.edit()
+                .putString("webhook_url", server.url("/sms").toString())
+                .putString(SmsStoreWorker.PREF_DELIVERY_MODE, deliveryMode)
+                .putString(SmsStoreWorker.PREF_UPLOAD_CONCURRENCY, String.valueOf(concurrency))
+                .putBoolean(WebhookUploader.PREF_COMPRESS_UPLOADS, compress)
+                .commit();
+
+        Statistics stats = Statistics.getInstance();
+        stats.getHistogram(Statistics.Timer.UPLOAD).reset();
+        SmsStoreWorker worker = TestWorkerBuilder.from(context, SmsStoreWorker.class, executor).build();
+
+        HeapSampler heap = new HeapSampler();
+        heap.start();
+        long started = System.nanoTime();
+        ListenableWorker.Result result = worker.doWork();
+        long elapsed = System.nanoTime() - started;
+        heap.interrupt();
+        heap.join();
+
+        LatencyHistogram uploads = stats.getHistogram(Statistics.Timer.UPLOAD);
+        String report = String.format(Locale.ROOT,
+                "messages=%d mode=%s concurrency=%d compress=%b latency=%d-%dms errors=%.3f conflicts=%.3f%n"
+                        + "elapsed=%.2fs throughput=%.1f msg/s%n"
+                        + "requests=%d (503: %d, 409: %d) accepted=%d%n"
+                        + "upload p50=%.1fms p99=%.1fms%n"
+                        + "peak heap=%.1f MB%n",
+                messages, deliveryMode, concurrency, compress, minLatency, maxLatency, errorRate, conflictRate,
+                elapsed / 1e9, messages / (elapsed / 1e9),
+                webhook.getRequests(), webhook.getErrors(), webhook.getConflicts(), webhook.getAccepted(),
+                uploads.getPercentile(50) / 1e6, uploads.getPercentile(99) / 1e6,
+                heap.getPeak() / (1024.0 * 1024.0));
+        System.out.print(report);
+        writeReport(report);
+
+        assertTrue("Scan failed: " + result, result instanceof ListenableWorker.Result.Success);
+        if (errorRate == 0 && conflictRate == 0) {
+            assertEquals(messages, webhook.getAccepted());
+        }
+    }
+
+    private static void writeReport(String report) throws IOException {
+        File dir = new File("build/reports/throughput");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        try (Writer writer = new FileWriter(new File(dir, "backfill.txt"), true)) {
+            writer.write(report);
+            writer.write('\n');
+        }
+    }
+
+    // Samples heap in use until interrupted, keeping the highest reading
+    private static class HeapSampler extends Thread {
+        private volatile long peak;
+
+        HeapSampler() {
+            super("heap-sampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (!isInterrupted()) {
+                peak = Math.max(peak, runtime.totalMemory() - runtime.freeMemory());
+                try {
+                    Thread.sleep(HEAP_SAMPLE_INTERVAL);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+            peak = Math.max(peak, runtime.totalMemory() - runtime.freeMemory());
+        }
+
+        long getPeak() {
+            return peak;
+        }
+    }
+}
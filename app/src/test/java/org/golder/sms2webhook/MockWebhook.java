@@ -0,0 +1,105 @@
+package org.golder.sms2webhook;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSource;
+
+/**
+ * Webhook for the throughput harness, answering each request after an
+ * injected latency with a success, a server error or a 409 at given rates.
+ * Counts the messages it accepts, whether sent singly or in batches.
+ */
+class MockWebhook extends Dispatcher {
+
+    private final long minLatency;
+    private final long maxLatency;
+    private final double errorRate;
+    private final double conflictRate;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+
+    /**
+     * @param minLatency   Shortest time to answer, in milliseconds.
+     * @param maxLatency   Longest time to answer, in milliseconds.
+     * @param errorRate    Fraction of requests answered with a 503, from 0 to 1.
+     * @param conflictRate Fraction of requests answered with a 409, from 0 to 1.
+     */
+    MockWebhook(long minLatency, long maxLatency, double errorRate, double conflictRate) {
+        this.minLatency = minLatency;
+        this.maxLatency = Math.max(minLatency, maxLatency);
+        this.errorRate = errorRate;
+        this.conflictRate = conflictRate;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        requests.incrementAndGet();
+        long latency = minLatency == maxLatency ? minLatency
+                : ThreadLocalRandom.current().nextLong(minLatency, maxLatency + 1);
+        if (latency > 0) {
+            Thread.sleep(latency);
+        }
+
+        double roll = ThreadLocalRandom.current().nextDouble();
+        if (roll < errorRate) {
+            errors.incrementAndGet();
+            return new MockResponse().setResponseCode(503);
+        }
+        if (roll < errorRate + conflictRate) {
+            conflicts.incrementAndGet();
+            return new MockResponse().setResponseCode(409);
+        }
+        try {
+            accepted.addAndGet(countMessages(readBody(request)));
+        } catch (IOException ioe) {
+            return new MockResponse().setResponseCode(400);
+        }
+        return new MockResponse().setResponseCode(200);
+    }
+
+    private static String readBody(RecordedRequest request) throws IOException {
+        Buffer body = request.getBody();
+        if (!"gzip".equals(request.getHeader("Content-Encoding"))) {
+            return body.readUtf8();
+        }
+        Buffer plain = new Buffer();
+        try (GzipSource source = new GzipSource(body)) {
+            plain.writeAll(source);
+        }
+        return plain.readUtf8();
+    }
+
+    // Every payload has exactly one "_id" field, and bodies are escaped, so this counts messages in any format
+    private static int countMessages(String body) {
+        int count = 0;
+        for (int i = body.indexOf("\"_id\":"); i >= 0; i = body.indexOf("\"_id\":", i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getErrors() {
+        return errors.get();
+    }
+
+    long getConflicts() {
+        return conflicts.get();
+    }
+
+    long getAccepted() {
+        return accepted.get();
+    }
+}
@@ -0,0 +1,115 @@
+package org.golder.sms2webhook;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+
+import java.util.Random;
+
+/**
+ * Stand-in for the SMS provider, serving {@code content://sms/inbox} from an
+ * in-memory SQLite table with the same columns, filled with generated messages.
+ */
+public class SyntheticSmsProvider extends ContentProvider {
+
+    private static final String[] ADDRESSES = {"+16505551212", "+447700900123", "+61491570156", "BANK", "72975"};
+    private static final String WORDS = "the code your is for delivery order meeting tomorrow please call back "
+            + "thanks running late see you at verification expires minutes don't share";
+    private static final String NON_ASCII = "\u00e9\u00fc\u00f1\u4f60\u597d\ud83d\ude00";
+
+    private SQLiteDatabase database;
+
+    @Override
+    public boolean onCreate() {
+        database = SQLiteDatabase.create(null);
+        database.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, thread_id INTEGER, address TEXT, "
+                + "date INTEGER, date_sent INTEGER, protocol INTEGER, read INTEGER, status INTEGER, type INTEGER, "
+                + "reply_path_present INTEGER, body TEXT, service_center TEXT, locked INTEGER, sub_id INTEGER, "
+                + "error_code INTEGER, creator TEXT, seen INTEGER)");
+        return true;
+    }
+
+    /**
+     * Adds generated messages to the inbox. Bodies are built from words up to
+     * a length drawn uniformly from the given range, and some carry non-ASCII
+     * text so they take the multi-byte encoding paths.
+     *
+     * @param count         Number of messages.
+     * @param minBodyLength Shortest body, in chars.
+     * @param maxBodyLength Longest body, in chars.
+     * @param nonAsciiRatio Fraction of bodies with non-ASCII text, from 0 to 1.
+     * @param seed          Seed, so runs with the same settings get the same inbox.
+     */
+    void fill(int count, int minBodyLength, int maxBodyLength, double nonAsciiRatio, long seed) {
+        Random random = new Random(seed);
+        String[] words = WORDS.split(" ");
+        long date = 1724154171042L;
+        StringBuilder body = new StringBuilder(maxBodyLength + 16);
+        database.beginTransaction();
+        try {
+            SQLiteStatement insert = database.compileStatement("INSERT INTO sms (thread_id, address, date, "
+                    + "date_sent, protocol, read, status, type, reply_path_present, body, service_center, locked, "
+                    + "sub_id, error_code, creator, seen) VALUES (?, ?, ?, ?, 0, 1, -1, 1, 0, ?, ?, 0, 1, 0, ?, 1)");
+            for (int i = 0; i < count; i++) {
+                int length = minBodyLength + random.nextInt(maxBodyLength - minBodyLength + 1);
+                boolean nonAscii = random.nextDouble() < nonAsciiRatio;
+                body.setLength(0);
+                // A serial number keeps every message distinct, however short
+                body.append(i).append(' ');
+                while (body.length() < length) {
+                    if (nonAscii && random.nextInt(4) == 0) {
+                        body.append(NON_ASCII).append(' ');
+                    } else {
+                        body.append(words[random.nextInt(words.length)]).append(' ');
+                    }
+                }
+                int addressIndex = random.nextInt(ADDRESSES.length);
+                date += 1 + random.nextInt(600_000);
+                insert.bindLong(1, addressIndex + 1);
+                insert.bindString(2, ADDRESSES[addressIndex]);
+                insert.bindLong(3, date);
+                insert.bindLong(4, date - random.nextInt(5000));
+                insert.bindString(5, body.toString());
+                insert.bindString(6, "+12063130004");
+                insert.bindString(7, "com.google.android.apps.messaging");
+                insert.executeInsert();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        if (!"/inbox".equals(uri.getPath())) {
+            return null;
+        }
+        // Like the SMS provider, only the String-based query is implemented, so ContentResolver.QUERY_ARG_LIMIT
+        // is dropped; the worker pages with "_id ASC LIMIT n", which SQLite takes as part of the ORDER BY clause
+        return database.query("sms", projection, selection, selectionArgs, null, null, sortOrder);
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Read only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read only");
+    }
+}
@@ -0,0 +1,90 @@
+package org.golder.sms2webhook;
+
+import android.content.Context;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Synthetic digests and cache files for the cache benchmarks.
+ *
+ * Digest {@code n} is spread over its first eight bytes by a SplitMix64 step,
+ * as evenly as a real hash would spread it, and carries {@code n} itself in
+ * the next eight, so every {@code n} gives a distinct digest. Making one
+ * allocates nothing, so it can be done inside a measured loop.
+ */
+final class BenchmarkDigests {
+
+    private BenchmarkDigests() {
+    }
+
+    /**
+     * Writes digest {@code n} into a buffer.
+     *
+     * @param n      Which digest.
+     * @param into   The buffer.
+     * @param offset Where in the buffer to write the 32 bytes.
+     */
+    static void fill(long n, byte[] into, int offset) {
+        long mixed = n + 0x9E3779B97F4A7C15L;
+        mixed = (mixed ^ (mixed >>> 30)) * 0xBF58476D1CE4E5B9L;
+        mixed = (mixed ^ (mixed >>> 27)) * 0x94D049BB133111EBL;
+        mixed ^= mixed >>> 31;
+        for (int i = 0; i < 8; i++) {
+            into[offset + i] = (byte) (mixed >>> (56 - i * 8));
+            into[offset + 8 + i] = (byte) (n >>> (56 - i * 8));
+        }
+        for (int i = 16; i < DigestTable.DIGEST_LENGTH; i++) {
+            into[offset + i] = 0;
+        }
+    }
+
+    /**
+     * Writes a snapshot holding digests {@code 0} to {@code count - 1}.
+     *
+     * @param file  The snapshot file.
+     * @param count The number of digests.
+     * @throws IOException If the file cannot be written.
+     */
+    static void writeSnapshot(File file, int count) throws IOException {
+        byte[] records = new byte[count * DigestTable.DIGEST_LENGTH];
+        for (int i = 0; i < count; i++) {
+            fill(i, records, i * DigestTable.DIGEST_LENGTH);
+        }
+        DigestSnapshot.write(file, FingerprintAlgorithm.SHA256, null, records, count);
+    }
+
+    /**
+     * Returns the base name of a cache file in a scratch directory, which is
+     * emptied first. The cache adds suffixes to this name for its other files.
+     *
+     * @param name A name for the file.
+     * @return The file.
+     */
+    static File scratchFile(String name) {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        File dir = new File(context.getCacheDir(), "benchmark");
+        deleteContents(dir);
+        dir.mkdirs();
+        return new File(dir, name);
+    }
+
+    /**
+     * Deletes the files in the scratch directory.
+     */
+    static void deleteScratchFiles() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        deleteContents(new File(context.getCacheDir(), "benchmark"));
+    }
+
+    private static void deleteContents(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
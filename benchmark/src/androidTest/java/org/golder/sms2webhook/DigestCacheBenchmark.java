@@ -0,0 +1,116 @@
+package org.golder.sms2webhook;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Cost of the de-duplication lookups and inserts made for every message, with
+ * caches of different sizes. Each cache is loaded from a snapshot, as it is
+ * after the first save, so lookups mostly hit the mapped snapshot.
+ */
+@RunWith(Parameterized.class)
+public class DigestCacheBenchmark {
+
+    // Distinct digests looked up in turn, so lookups are not all served from one cache line
+    private static final int LOOKUPS = 1024;
+
+    @Parameterized.Parameters(name = "entries={0}")
+    public static Collection<Object[]> sizes() {
+        return Arrays.asList(new Object[][]{{10_000}, {100_000}, {1_000_000}});
+    }
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private final int entries;
+    private DigestCache cache;
+
+    public DigestCacheBenchmark(int entries) {
+        this.entries = entries;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        File file = BenchmarkDigests.scratchFile("cache");
+        BenchmarkDigests.writeSnapshot(file, entries);
+        cache = DigestCache.getInstance();
+        cache.setFilename(file.getAbsolutePath());
+        cache.setAlgorithm(FingerprintAlgorithm.SHA256);
+        cache.load();
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+        BenchmarkDigests.deleteScratchFiles();
+    }
+
+    @Test
+    public void existsHit() {
+        byte[][] digests = digests(0, entries / LOOKUPS);
+        BenchmarkState state = benchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            cache.exists(digests[i]);
+            i = (i + 1) & (LOOKUPS - 1);
+        }
+    }
+
+    @Test
+    public void existsMiss() {
+        byte[][] digests = digests(entries, 1);
+        BenchmarkState state = benchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            cache.exists(digests[i]);
+            i = (i + 1) & (LOOKUPS - 1);
+        }
+    }
+
+    @Test
+    public void existsHexKey() {
+        String[] keys = new String[LOOKUPS];
+        byte[][] digests = digests(0, entries / LOOKUPS);
+        for (int i = 0; i < LOOKUPS; i++) {
+            keys[i] = MessageFingerprinter.toHex(digests[i]);
+        }
+        BenchmarkState state = benchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            cache.exists(keys[i]);
+            i = (i + 1) & (LOOKUPS - 1);
+        }
+    }
+
+    // Includes the write-ahead log, which is appended to and fsynced every 64 adds
+    @Test
+    public void add() {
+        byte[] digest = new byte[DigestTable.DIGEST_LENGTH];
+        BenchmarkState state = benchmarkRule.getState();
+        long n = entries;
+        while (state.keepRunning()) {
+            BenchmarkDigests.fill(n++, digest, 0);
+            cache.add(digest);
+        }
+    }
+
+    private static byte[][] digests(long first, long stride) {
+        byte[][] digests = new byte[LOOKUPS][DigestTable.DIGEST_LENGTH];
+        for (int i = 0; i < LOOKUPS; i++) {
+            BenchmarkDigests.fill(first + i * stride, digests[i], 0);
+        }
+        return digests;
+    }
+}
@@ -0,0 +1,115 @@
+package org.golder.sms2webhook;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Cost of loading and saving the digest cache, with caches of different sizes.
+ */
+@RunWith(Parameterized.class)
+public class DigestCachePersistenceBenchmark {
+
+    // Digests in the write-ahead log when loading, as after a day of new messages
+    private static final int LOGGED = 1000;
+
+    // Digests added between saves, i.e. one log group
+    private static final int ADDED_PER_SAVE = 64;
+
+    // Digests merged into the snapshot by a compaction, the least that triggers one
+    private static final int COMPACTED = 10_000;
+
+    @Parameterized.Parameters(name = "entries={0}")
+    public static Collection<Object[]> sizes() {
+        return Arrays.asList(new Object[][]{{10_000}, {100_000}, {1_000_000}});
+    }
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private final int entries;
+    private File file;
+    private DigestCache cache;
+
+    public DigestCachePersistenceBenchmark(int entries) {
+        this.entries = entries;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = BenchmarkDigests.scratchFile("cache");
+        BenchmarkDigests.writeSnapshot(file, entries);
+        cache = DigestCache.getInstance();
+        cache.setFilename(file.getAbsolutePath());
+        cache.setAlgorithm(FingerprintAlgorithm.SHA256);
+        cache.load();
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+        BenchmarkDigests.deleteScratchFiles();
+    }
+
+    // Maps the snapshot and replays the log
+    @Test
+    public void load() throws IOException {
+        byte[] digest = new byte[DigestTable.DIGEST_LENGTH];
+        for (int i = 0; i < LOGGED; i++) {
+            BenchmarkDigests.fill(entries + i, digest, 0);
+            cache.add(digest);
+        }
+        cache.save();
+
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            cache.load();
+        }
+    }
+
+    // Appends a group of new digests to the log, as after each scan page
+    @Test
+    public void save() throws IOException {
+        byte[] digest = new byte[DigestTable.DIGEST_LENGTH];
+        long n = entries;
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            for (int i = 0; i < ADDED_PER_SAVE; i++) {
+                BenchmarkDigests.fill(n++, digest, 0);
+                cache.add(digest);
+            }
+            state.resumeTiming();
+            cache.save();
+        }
+    }
+
+    // Merges the log into a new snapshot, as save() does once the log has grown
+    @Test
+    public void compact() throws IOException {
+        DigestSnapshot base = DigestSnapshot.open(file);
+        File compacted = new File(file.getParentFile(), "compacted");
+        byte[] records = new byte[COMPACTED * DigestTable.DIGEST_LENGTH];
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            // Refilled each time, since writing sorts them in place
+            for (int i = 0; i < COMPACTED; i++) {
+                BenchmarkDigests.fill(entries + i, records, i * DigestTable.DIGEST_LENGTH);
+            }
+            state.resumeTiming();
+            DigestSnapshot.write(compacted, FingerprintAlgorithm.SHA256, base, records, COMPACTED);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.golder.sms2webhook;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Cost of computing a message's cache key, as the inbox scan does for every row.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FingerprintBenchmark {
+
+    private static final long DATE = 1724154171042L;
+    private static final String ADDRESS = "+16505551212";
+    private static final String BODY = "Your verification code is 482913. It expires in 10 minutes. "
+            + "Don't share this code with anyone; we will never ask for it.";
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void sha256() {
+        MessageFingerprinter fingerprinter = MessageFingerprinter.get();
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            fingerprinter.fingerprint(FingerprintAlgorithm.SHA256, DATE, ADDRESS, BODY);
+        }
+    }
+
+    @Test
+    public void murmur3() {
+        MessageFingerprinter fingerprinter = MessageFingerprinter.get();
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            fingerprinter.fingerprint(FingerprintAlgorithm.MURMUR3_128, DATE, ADDRESS, BODY);
+        }
+    }
+
+    @Test
+    public void sha256CharArrays() {
+        MessageFingerprinter fingerprinter = MessageFingerprinter.get();
+        char[] address = ADDRESS.toCharArray();
+        char[] body = BODY.toCharArray();
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            fingerprinter.fingerprint(FingerprintAlgorithm.SHA256, DATE, address, address.length, body, body.length);
+        }
+    }
+
+    @Test
+    public void toHex() {
+        byte[] digest = MessageFingerprinter.get().fingerprint(FingerprintAlgorithm.SHA256, DATE, ADDRESS, BODY).clone();
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            MessageFingerprinter.toHex(digest);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.golder.sms2webhook;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cost of turning an inbox row into a webhook payload. The row comes from an
+ * in-memory SQLite table, so reads go through a CursorWindow as they do from
+ * the SMS provider.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PayloadBenchmark {
+
+    private static final String[] COLUMNS = {"_id", "address", "date", "date_sent", "body", "thread_id",
+            "protocol", "read", "status", "type", "reply_path_present", "locked", "sub_id", "error_code",
+            "creator", "seen"};
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private SQLiteDatabase database;
+    private Cursor cursor;
+
+    @Before
+    public void setUp() {
+        database = SQLiteDatabase.create(null);
+        database.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, address TEXT, date INTEGER, "
+                + "date_sent INTEGER, body TEXT, thread_id INTEGER, protocol INTEGER, read INTEGER, "
+                + "status INTEGER, type INTEGER, reply_path_present INTEGER, locked INTEGER, sub_id INTEGER, "
+                + "error_code INTEGER, creator TEXT, seen INTEGER)");
+        ContentValues row = new ContentValues();
+        row.put("_id", 2);
+        row.put("address", "+16505551212");
+        row.put("date", 1724154171042L);
+        row.put("date_sent", 1724154170000L);
+        row.put("body", "Your verification code is 482913. It expires in 10 minutes. "
+                + "Don't share this code with anyone; we will never ask for it.");
+        row.put("thread_id", 2);
+        row.put("protocol", 0);
+        row.put("read", 0);
+        row.put("status", -1);
+        row.put("type", 1);
+        row.put("reply_path_present", 0);
+        row.put("locked", 0);
+        row.put("sub_id", 1);
+        row.put("error_code", 0);
+        row.put("creator", "com.google.android.apps.messaging");
+        row.put("seen", 1);
+        database.insert("sms", null, row);
+
+        cursor = database.query("sms", COLUMNS, null, null, null, null, null);
+        cursor.moveToFirst();
+    }
+
+    @After
+    public void tearDown() {
+        cursor.close();
+        database.close();
+    }
+
+    @Test
+    public void payloadWriter() {
+        MessageProjection projection = MessageProjection.forColumns(COLUMNS);
+        projection.bind(cursor);
+        PayloadWriter writer = new PayloadWriter();
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            projection.write(cursor, writer);
+            writer.toByteArray();
+        }
+    }
+
+    // What the scan did before payloads were streamed, kept as a baseline
+    @Test
+    public void jsonObject() throws JSONException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            JSONObject msg = new JSONObject();
+            for (int idx = 0; idx < cursor.getColumnCount(); idx++) {
+                String colname = cursor.getColumnName(idx);
+                String colval = cursor.getString(idx);
+                if (colname.equals("date") || colname.equals("date_sent")) {
+                    msg.put(colname, Long.valueOf(colval));
+                } else {
+                    msg.put(colname, colval);
+                }
+            }
+            msg.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,728 @@
+package org.golder.sms2webhook;
+
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Class to handle cache operations, with one instance per webhook destination.
+ *
+ * The cache is persisted as a snapshot file plus a write-ahead log. New digests
+ * are appended to the log as raw 32-byte records and fsynced in small groups, so
+ * saving costs time in proportion to what was added, not to the size of the
+ * cache. Once the log grows large it is compacted into a new snapshot, written
+ * to a temp file and atomically renamed into place, so a crash never leaves a
+ * truncated cache behind.
+ *
+ * Adding only locks briefly: the table is striped, and a full group is written
+ * and fsynced by one thread at a time outside the log's buffer lock, so other
+ * threads keep adding meanwhile. Compaction, loading and clearing replace the
+ * table and the log wholesale, so they exclude adds through a read/write lock.
+ *
+ * The snapshot is a sorted binary file that is memory-mapped and queried in
+ * place (see {@link DigestSnapshot}); only digests added since it was written
+ * are held in memory. Loading therefore costs the same whatever the history
+ * size. Older hex-per-line cache files are read once and converted on the
+ * next save.
+ *
+ * Digests are produced by a configurable {@link FingerprintAlgorithm}, which
+ * the snapshot and the log record. When the configured algorithm differs from
+ * the stored one, the stored digests are set aside as a read-only previous
+ * snapshot, so a full rescan can re-key already delivered messages instead of
+ * sending them again (see {@link #existsPrevious(byte[])}).
+ */
+public class DigestCache {
+
+    // One instance per destination, keyed by destination id
+    private static final Map<String, DigestCache> instances = new HashMap<>();
+
+    // Id of the primary destination, whose cache keeps the file names used before there were several
+    static final String PRIMARY_ID = "primary";
+
+    // Synchronization monitor
+    private static final Object monitor = new Object();
+
+    // Cache filename
+    private String filename;
+
+    // Suffix of the file holding the persisted watermark
+    private static final String WATERMARK_SUFFIX = ".watermark";
+
+    // Suffix of the write-ahead log of digests added since the snapshot
+    private static final String WAL_SUFFIX = ".wal";
+
+    // Suffix of the snapshot of digests made with a previously configured algorithm
+    private static final String PREVIOUS_SUFFIX = ".prev";
+
+    // Suffix of files being written before they are renamed into place
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Number of new digests buffered before they are appended and fsynced
+    private static final int WAL_GROUP_SIZE = 64;
+
+    // Minimum number of log records before the log is compacted into the snapshot
+    private static final int WAL_COMPACT_THRESHOLD = 10000;
+
+    // Marks the record at the start of the log that names its algorithm ("S2WL")
+    private static final int WAL_MAGIC = 0x5332574C;
+
+    // Cache store, holding raw digests added since the snapshot was written
+    private final DigestTable cache;
+
+    // Mapped snapshot of everything else, or null if there is none
+    private volatile DigestSnapshot snapshot;
+
+    // Algorithm of the digests added to the cache
+    private volatile FingerprintAlgorithm algorithm = FingerprintAlgorithm.SHA256;
+
+    // Digests made with a previously configured algorithm, or null if there are none
+    private volatile DigestSnapshot previous;
+
+    // Scratch buffer for decoding hex keys, one per thread so lookups do not allocate
+    private static final ThreadLocal<byte[]> keyBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[DigestTable.DIGEST_LENGTH];
+        }
+    };
+
+    // Held for reading by adds, and for writing while the table and files are replaced wholesale
+    private final ReentrantReadWriteLock compactionLock = new ReentrantReadWriteLock();
+
+    // Guards the buffer of new digests and the fields below
+    private final Object walLock = new Object();
+
+    // New digests not yet appended to the log
+    private byte[] walPending = new byte[WAL_GROUP_SIZE * DigestTable.DIGEST_LENGTH];
+    private int walPendingCount;
+
+    // Number of records in the log
+    private int walRecords;
+
+    // Whether the snapshot must be rewritten rather than appended to, e.g. after clear()
+    private boolean rewrite;
+
+    // Makes the thread appending to the log its only writer, and guards the open log
+    private final Object walWriteLock = new Object();
+    private FileOutputStream walStream;
+
+    // Highest inbox _id known to be fully processed
+    private volatile long watermark;
+
+    // Whether the cache has been loaded from its file
+    private volatile boolean loaded;
+
+    // Private constructor to prevent instantiation
+    private DigestCache() {
+        this.cache = new DigestTable();
+        clear();
+    }
+
+    /**
+     * Sets the filename for cache operations.
+     *
+     * @param filename The filename for cache operations.
+     */
+    public void setFilename(String filename) {
+        if (filename == null || filename.isEmpty()) {
+            throw new IllegalArgumentException("Filename cannot be null or empty");
+        }
+        this.filename = filename;
+    }
+
+    /**
+     * Sets the algorithm whose digests the cache holds. Takes effect on the next
+     * {@link #load()}, which sets aside any digests made with another algorithm.
+     *
+     * @param algorithm The fingerprint algorithm.
+     */
+    public void setAlgorithm(FingerprintAlgorithm algorithm) {
+        if (algorithm == null) {
+            throw new IllegalArgumentException("Algorithm cannot be null");
+        }
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Returns the algorithm whose digests the cache holds.
+     *
+     * @return The fingerprint algorithm.
+     */
+    public FingerprintAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Adds a cache key to the cache.
+     *
+     * @param cacheKey The cache key to be added.
+     */
+    public void add(String cacheKey) {
+        add(decodeKey(cacheKey));
+    }
+
+    /**
+     * Adds a raw digest to the cache.
+     *
+     * @param digest The 32-byte digest to be added.
+     */
+    public void add(byte[] digest) {
+        // Excludes compaction, which empties the table once it is in the snapshot
+        compactionLock.readLock().lock();
+        try {
+            if (inSnapshot(digest) || !cache.add(digest, 0)) {
+                return;
+            }
+            byte[] group = appendToWal(digest);
+            if (group != null) {
+                try {
+                    writeWal(group);
+                } catch (IOException ioe) {
+                    // Back in the buffer, so the next save tries again
+                    Log.w("digestcache", "Unable to append to cache log: " + ioe);
+                }
+            }
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks if a cache key exists in the cache.
+     *
+     * @param cacheKey The cache key to be checked.
+     * @return True if the cache key exists, false otherwise.
+     */
+    public boolean exists(String cacheKey) {
+        return exists(decodeKey(cacheKey));
+    }
+
+    /**
+     * Checks if a raw digest exists in the cache.
+     *
+     * @param digest The 32-byte digest to be checked.
+     * @return True if the digest exists, false otherwise.
+     */
+    public boolean exists(byte[] digest) {
+        return cache.contains(digest, 0) || inSnapshot(digest);
+    }
+
+    /**
+     * Checks if a digest made with the previously configured algorithm is in the
+     * set-aside snapshot.
+     *
+     * @param digest The 32-byte digest, made with {@link #getPreviousAlgorithm()}.
+     * @return True if the digest exists, false otherwise or if there is no previous snapshot.
+     */
+    public boolean existsPrevious(byte[] digest) {
+        DigestSnapshot current = previous;
+        return current != null && current.contains(digest, 0);
+    }
+
+    /**
+     * Returns the algorithm of the set-aside snapshot.
+     *
+     * @return The previous fingerprint algorithm, or null if there is no previous snapshot.
+     */
+    public FingerprintAlgorithm getPreviousAlgorithm() {
+        DigestSnapshot current = previous;
+        return current == null ? null : current.getAlgorithm();
+    }
+
+    /**
+     * Discards the set-aside snapshot, once every message it covers has been
+     * re-keyed with the current algorithm.
+     *
+     * @throws IOException If the file cannot be deleted.
+     */
+    public void dropPrevious() throws IOException {
+        compactionLock.writeLock().lock();
+        try {
+            if (previous == null) {
+                return;
+            }
+            previous = null;
+            if (filename != null) {
+                Files.deleteIfExists(Paths.get(filename + PREVIOUS_SUFFIX));
+            }
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+        Log.i("digestcache", "Dropped digests of previous fingerprint algorithm");
+    }
+
+    private boolean inSnapshot(byte[] digest) {
+        DigestSnapshot current = snapshot;
+        return current != null && current.contains(digest, 0);
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        DigestSnapshot current = snapshot;
+        return cache.size() + (current == null ? 0 : current.size());
+    }
+
+    // Decodes a 64-character hex cache key into this thread's scratch buffer
+    private static byte[] decodeKey(String cacheKey) {
+        if (cacheKey == null || cacheKey.isEmpty()) {
+            throw new IllegalArgumentException("Cache key cannot be null or empty");
+        }
+        if (cacheKey.length() != DigestTable.DIGEST_LENGTH * 2) {
+            throw new IllegalArgumentException("Cache key must be " + DigestTable.DIGEST_LENGTH * 2 + " hex characters");
+        }
+        byte[] digest = keyBuffer.get();
+        for (int i = 0; i < DigestTable.DIGEST_LENGTH; i++) {
+            int high = Character.digit(cacheKey.charAt(i * 2), 16);
+            int low = Character.digit(cacheKey.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Cache key must be hex encoded");
+            }
+            digest[i] = (byte) ((high << 4) | low);
+        }
+        return digest;
+    }
+
+    /**
+     * Clears the cache. The files are rewritten on the next {@link #save()}.
+     */
+    public void clear() {
+        compactionLock.writeLock().lock();
+        try {
+            cache.clear();
+            snapshot = null;
+            previous = null;
+            walPendingCount = 0;
+            rewrite = true;
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+        watermark = 0;
+    }
+
+    /**
+     * Returns the instance of the DigestCache class for the primary destination.
+     *
+     * @return The instance of the DigestCache class.
+     */
+    public static DigestCache getInstance() {
+        return getInstance(PRIMARY_ID);
+    }
+
+    /**
+     * Returns the instance of the DigestCache class holding what has been
+     * delivered to a destination, and how far through the inbox it has got.
+     *
+     * @param destinationId The destination's id.
+     * @return The instance of the DigestCache class.
+     */
+    public static DigestCache getInstance(String destinationId) {
+        synchronized (monitor) {
+            DigestCache instance = instances.get(destinationId);
+            if (instance == null) {
+                instance = new DigestCache();
+                instances.put(destinationId, instance);
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Loads the cache from the snapshot file, then replays the write-ahead log.
+     *
+     * @throws IllegalStateException If the filename is not set before loading the cache.
+     * @throws IOException          If an I/O error occurs while loading the cache.
+     */
+    public void load() throws IOException {
+        if (filename == null) {
+            Log.w("digestcache", "Failed to load digest cache: filename not provided");
+            throw new IllegalStateException("Filename not set before loading or saving cache");
+        }
+
+        compactionLock.writeLock().lock();
+        try {
+            clear();
+            closeWal();
+
+            boolean legacy = false;
+            File file = new File(filename);
+            if (!file.exists()) {
+                Log.w("digestcache", "Cache file not found: " + filename);
+            } else if (DigestSnapshot.isSnapshot(file)) {
+                snapshot = DigestSnapshot.open(file);
+            } else {
+                legacy = true;
+                loadLegacy(Paths.get(filename));
+            }
+
+            FingerprintAlgorithm logged = replayWal();
+            FingerprintAlgorithm stored = snapshot != null ? snapshot.getAlgorithm()
+                    : legacy ? FingerprintAlgorithm.SHA256
+                    : logged != null ? logged : algorithm;
+
+            // A legacy file is replaced by a binary snapshot on the next save
+            rewrite = legacy;
+
+            if (stored != algorithm && (snapshot != null || cache.size() > 0)) {
+                retire(stored);
+            }
+            File previousFile = new File(filename + PREVIOUS_SUFFIX);
+            if (previousFile.exists()) {
+                previous = DigestSnapshot.open(previousFile);
+            }
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+
+        loadWatermark();
+        loaded = true;
+    }
+
+    /**
+     * Checks whether the cache has been loaded from its file.
+     *
+     * @return True once {@link #load()} has completed.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    // Reads a hex-per-line cache file, as written by earlier versions
+    private void loadLegacy(Path filePath) throws IOException {
+        Log.i("digestcache", "Converting legacy cache file: " + filePath);
+        try (Stream<String> lines = Files.lines(filePath)) {
+            lines.forEach(this::loadKey);
+        } catch (java.nio.file.AccessDeniedException e) {
+            Log.w("digestcache", "Access denied to cache file: " + filename);
+        }
+    }
+
+    private void loadKey(String line) {
+        // Older cache files have a blank line after every key
+        if (line.isEmpty()) {
+            return;
+        }
+        try {
+            cache.add(decodeKey(line), 0);
+        } catch (IllegalArgumentException e) {
+            Log.w("digestcache", "Skipping invalid cache entry: " + e.getMessage());
+        }
+    }
+
+    // Replays the log into the table, returning the algorithm it names, or null if there is no log
+    private FingerprintAlgorithm replayWal() throws IOException {
+        File wal = new File(filename + WAL_SUFFIX);
+        walRecords = 0;
+        if (!wal.exists()) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(wal, "rw")) {
+            long length = file.length();
+            long complete = length - length % DigestTable.DIGEST_LENGTH;
+            byte[] buffer = new byte[DigestTable.DIGEST_LENGTH * 1024];
+            long position = 0;
+            // Logs written before algorithms were configurable have no header and hold SHA-256 digests
+            FingerprintAlgorithm logged = FingerprintAlgorithm.SHA256;
+            int start = 0;
+            while (position < complete) {
+                int chunk = (int) Math.min(buffer.length, complete - position);
+                file.readFully(buffer, 0, chunk);
+                if (position == 0 && isWalHeader(buffer)) {
+                    logged = FingerprintAlgorithm.forId(readInt(buffer, 4));
+                    if (logged == null) {
+                        throw new IOException("Unknown fingerprint algorithm in " + wal);
+                    }
+                    start = DigestTable.DIGEST_LENGTH;
+                }
+                for (int offset = start; offset < chunk; offset += DigestTable.DIGEST_LENGTH) {
+                    if (snapshot == null || !snapshot.contains(buffer, offset)) {
+                        cache.add(buffer, offset);
+                    }
+                }
+                position += chunk;
+                start = 0;
+            }
+            walRecords = (int) (complete / DigestTable.DIGEST_LENGTH);
+
+            // Drop a record torn by a crash mid-append
+            if (complete != length) {
+                Log.w("digestcache", "Truncating partial record at end of " + wal);
+                file.setLength(complete);
+            }
+            return logged;
+        }
+    }
+
+    private static boolean isWalHeader(byte[] record) {
+        if (readInt(record, 0) != WAL_MAGIC) {
+            return false;
+        }
+        for (int i = 8; i < DigestTable.DIGEST_LENGTH; i++) {
+            if (record[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    // Sets the loaded digests aside as the previous snapshot, leaving the cache empty
+    private void retire(FingerprintAlgorithm stored) throws IOException {
+        Log.i("digestcache", "Fingerprint algorithm changed from " + stored.getName()
+                + " to " + algorithm.getName() + ", setting cached digests aside");
+        Path previousPath = Paths.get(filename + PREVIOUS_SUFFIX);
+        Path temp = Paths.get(filename + PREVIOUS_SUFFIX + TEMP_SUFFIX);
+
+        // Fold the loaded digests into the previous snapshot from an earlier change, if compatible
+        DigestSnapshot base = snapshot;
+        if (base == null && Files.exists(previousPath)) {
+            DigestSnapshot older = DigestSnapshot.open(previousPath.toFile());
+            if (older.getAlgorithm() == stored) {
+                base = older;
+            } else {
+                Log.w("digestcache", "Discarding digests of " + older.getAlgorithm().getName());
+            }
+        }
+        int[] count = new int[1];
+        byte[] records = gatherRecords(count);
+        if (snapshot != null && Files.exists(previousPath)) {
+            Log.w("digestcache", "Replacing digests of an earlier fingerprint algorithm");
+        }
+        DigestSnapshot.write(temp.toFile(), stored, base, records, count[0]);
+        Files.move(temp, previousPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // Start afresh; the snapshot is rewritten with the new algorithm on the next save
+        cache.clear();
+        snapshot = null;
+        closeWal();
+        Files.deleteIfExists(Paths.get(filename + WAL_SUFFIX));
+        Files.deleteIfExists(Paths.get(filename));
+        walRecords = 0;
+        walPendingCount = 0;
+        rewrite = true;
+    }
+
+    private void loadWatermark() throws IOException {
+        Path filePath = Paths.get(filename + WATERMARK_SUFFIX);
+        try {
+            String value = new String(Files.readAllBytes(filePath), StandardCharsets.UTF_8).trim();
+            watermark = value.isEmpty() ? 0 : Long.parseLong(value);
+        } catch (java.nio.file.NoSuchFileException e) {
+            Log.w("digestcache", "Watermark file not found: " + filePath);
+        } catch (NumberFormatException e) {
+            Log.w("digestcache", "Ignoring corrupt watermark file: " + filePath);
+            watermark = 0;
+        }
+    }
+
+    /**
+     * Saves the cache, by appending new digests to the write-ahead log, or by
+     * compacting everything into a new snapshot once the log has grown large.
+     *
+     * @throws IllegalStateException If the filename is not set before saving the cache.
+     * @throws IOException          If an I/O error occurs while saving the cache.
+     */
+    public void save() throws IOException {
+        if (filename == null) {
+            Log.w("digestcache", "No cache filename provided");
+            throw new IllegalStateException("Filename not set before loading or saving cache");
+        }
+
+        boolean compacted = false;
+        compactionLock.writeLock().lock();
+        try {
+            if (previous == null) {
+                // Set aside digests are kept until dropped or cleared
+                Files.deleteIfExists(Paths.get(filename + PREVIOUS_SUFFIX));
+            }
+            int records = walRecords + walPendingCount;
+            DigestSnapshot current = snapshot;
+            int snapshotSize = current == null ? 0 : current.size();
+            if (rewrite || records >= Math.max(WAL_COMPACT_THRESHOLD, snapshotSize / 4)) {
+                compact();
+                compacted = true;
+            }
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+
+        // Otherwise append what is buffered, alongside any adds still going on
+        if (!compacted) {
+            compactionLock.readLock().lock();
+            try {
+                byte[] group;
+                synchronized (walLock) {
+                    group = takeWalPending();
+                }
+                if (group != null) {
+                    writeWal(group);
+                }
+            } finally {
+                compactionLock.readLock().unlock();
+            }
+        }
+
+        // Only commit the watermark once the digests it covers are on disk
+        writeAtomically(Paths.get(filename + WATERMARK_SUFFIX),
+                String.valueOf(watermark).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Buffers a new digest for the log, returning a full group for the caller to write, if there is one
+    private byte[] appendToWal(byte[] digest) {
+        synchronized (walLock) {
+            bufferWal(digest, 0, 1);
+            if (walPendingCount >= WAL_GROUP_SIZE && filename != null && !rewrite) {
+                return takeWalPending();
+            }
+            return null;
+        }
+    }
+
+    private void bufferWal(byte[] records, int offset, int count) {
+        int length = count * DigestTable.DIGEST_LENGTH;
+        int end = walPendingCount * DigestTable.DIGEST_LENGTH;
+        if (end + length > walPending.length) {
+            walPending = Arrays.copyOf(walPending, Math.max(walPending.length * 2, end + length));
+        }
+        System.arraycopy(records, offset, walPending, end, length);
+        walPendingCount += count;
+    }
+
+    // Empties the buffer, returning what it held, or null if it was empty
+    private byte[] takeWalPending() {
+        if (walPendingCount == 0) {
+            return null;
+        }
+        byte[] group = Arrays.copyOf(walPending, walPendingCount * DigestTable.DIGEST_LENGTH);
+        walPendingCount = 0;
+        return group;
+    }
+
+    // Appends records to the log and forces them to storage, one writer at a time. Called with the
+    // compaction lock held, so the log is not replaced underneath. On failure the records go back in the buffer.
+    private void writeWal(byte[] group) throws IOException {
+        try {
+            synchronized (walWriteLock) {
+                if (walStream == null) {
+                    File wal = new File(filename + WAL_SUFFIX);
+                    boolean created = wal.length() == 0;
+                    walStream = new FileOutputStream(wal, true);
+                    if (created) {
+                        // Name the algorithm in a header record, so the log is never replayed under another
+                        byte[] header = new byte[DigestTable.DIGEST_LENGTH];
+                        ByteBuffer.wrap(header).putInt(WAL_MAGIC).putInt(algorithm.getId());
+                        walStream.write(header);
+                    }
+                }
+                walStream.write(group);
+                walStream.getFD().sync();
+            }
+        } catch (IOException ioe) {
+            synchronized (walLock) {
+                bufferWal(group, 0, group.length / DigestTable.DIGEST_LENGTH);
+            }
+            throw ioe;
+        }
+        synchronized (walLock) {
+            walRecords += group.length / DigestTable.DIGEST_LENGTH;
+        }
+    }
+
+    // Merges the snapshot and the new digests into a new snapshot, then empties the log
+    private void compact() throws IOException {
+        Path snapshotPath = Paths.get(filename);
+        Path temp = Paths.get(filename + TEMP_SUFFIX);
+
+        int[] count = new int[1];
+        byte[] records = gatherRecords(count);
+        DigestSnapshot.write(temp.toFile(), algorithm, snapshot, records, count[0]);
+        Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshot = DigestSnapshot.open(snapshotPath.toFile());
+        cache.clear();
+
+        // Everything in the log is now in the snapshot
+        closeWal();
+        Files.deleteIfExists(Paths.get(filename + WAL_SUFFIX));
+        walRecords = 0;
+        walPendingCount = 0;
+        rewrite = false;
+        Log.d("digestcache", "Compacted cache into snapshot of " + snapshot.size() + " entries");
+    }
+
+    // Copies the digests held in memory back to back, storing their number in count[0]
+    private byte[] gatherRecords(final int[] count) {
+        final byte[] records = new byte[cache.size() * DigestTable.DIGEST_LENGTH];
+        cache.forEach((digests, offset) -> {
+            if ((count[0] + 1) * DigestTable.DIGEST_LENGTH <= records.length) {
+                System.arraycopy(digests, offset, records, count[0] * DigestTable.DIGEST_LENGTH, DigestTable.DIGEST_LENGTH);
+                count[0] += 1;
+            }
+        });
+        return records;
+    }
+
+    private void closeWal() {
+        if (walStream == null) {
+            return;
+        }
+        try {
+            walStream.close();
+        } catch (IOException ioe) {
+            Log.w("digestcache", "Error closing cache log: " + ioe);
+        }
+        walStream = null;
+    }
+
+    private static void writeAtomically(Path path, byte[] content) throws IOException {
+        Path temp = Paths.get(path + TEMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+            out.write(content);
+            out.getFD().sync();
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Sets the watermark value, i.e. the highest inbox message _id for which
+     * every message up to and including it has been processed. The value is
+     * persisted alongside the cache on the next {@link #save()}.
+     *
+     * @param value The watermark value.
+     */
+    public void setWatermark(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Watermark cannot be negative");
+        }
+        watermark = value;
+    }
+
+    /**
+     * Returns the current watermark value.
+     *
+     * @return The highest fully processed inbox message _id, or 0 if none.
+     */
+    public long getWatermark() {
+        return watermark;
+    }
+}
@@ -0,0 +1,294 @@
+package org.golder.sms2webhook;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only, memory-mapped snapshot of the digest cache.
+ *
+ * The file holds a 32-byte header, recording the number of digests and the
+ * {@link FingerprintAlgorithm} that produced them, followed by the digests
+ * sorted in unsigned byte order. Version 1 files have a 16-byte header and
+ * always hold SHA-256 digests. Lookups binary-search the mapping in place, so opening a
+ * snapshot costs the same whatever its size, and the OS only pages in the
+ * parts of the file that lookups actually touch.
+ */
+public class DigestSnapshot {
+
+    private static final int MAGIC = 0x53325744; // "S2WD"
+    private static final int VERSION = 2;
+    static final int HEADER_LENGTH = 32;
+
+    // Header length of version 1 files, which carry no algorithm id
+    private static final int V1_HEADER_LENGTH = 16;
+
+    private static final int RECORD = DigestTable.DIGEST_LENGTH;
+
+    private final MappedByteBuffer buffer;
+    private final int headerLength;
+    private final int count;
+    private final FingerprintAlgorithm algorithm;
+
+    private DigestSnapshot(MappedByteBuffer buffer, int headerLength, int count, FingerprintAlgorithm algorithm) {
+        this.buffer = buffer;
+        this.headerLength = headerLength;
+        this.count = count;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Checks whether a file starts with the snapshot header.
+     *
+     * @param file The file to check.
+     * @return True if the file is a binary snapshot.
+     * @throws IOException If the file cannot be read.
+     */
+    public static boolean isSnapshot(File file) throws IOException {
+        if (file.length() < V1_HEADER_LENGTH) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Maps a snapshot file.
+     *
+     * @param file The snapshot file.
+     * @return The snapshot.
+     * @throws IOException If the file cannot be mapped or is not a valid snapshot.
+     */
+    public static DigestSnapshot open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < V1_HEADER_LENGTH || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a digest snapshot: " + file);
+            }
+
+            int headerLength;
+            FingerprintAlgorithm algorithm;
+            int version = buffer.getInt(4);
+            if (version == 1) {
+                headerLength = V1_HEADER_LENGTH;
+                algorithm = FingerprintAlgorithm.SHA256;
+            } else if (version == VERSION && buffer.capacity() >= HEADER_LENGTH) {
+                headerLength = HEADER_LENGTH;
+                algorithm = FingerprintAlgorithm.forId(buffer.getInt(16));
+                if (algorithm == null) {
+                    throw new IOException("Unknown fingerprint algorithm " + buffer.getInt(16) + ": " + file);
+                }
+            } else {
+                throw new IOException("Unsupported digest snapshot version " + version + ": " + file);
+            }
+
+            long count = buffer.getLong(8);
+            if (count < 0 || headerLength + count * RECORD > buffer.capacity()) {
+                throw new IOException("Truncated digest snapshot: " + file);
+            }
+            return new DigestSnapshot(buffer, headerLength, (int) count, algorithm);
+        }
+    }
+
+    /**
+     * @return The number of digests in the snapshot.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return The algorithm that produced the digests in the snapshot.
+     */
+    public FingerprintAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Checks whether a digest is in the snapshot. Safe to call from any thread.
+     *
+     * @param digest Array holding the digest.
+     * @param offset Offset of the digest in the array.
+     * @return True if the digest is present.
+     */
+    public boolean contains(byte[] digest, int offset) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareAt(headerLength + (long) mid * RECORD, digest, offset);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Compares the mapped record at a position with a digest, a long at a time
+    private int compareAt(long position, byte[] digest, int offset) {
+        int base = (int) position;
+        for (int i = 0; i < RECORD; i += 8) {
+            long mapped = buffer.getLong(base + i);
+            long other = readLong(digest, offset + i);
+            if (mapped != other) {
+                return Long.compareUnsigned(mapped, other);
+            }
+        }
+        return 0;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xffL);
+        }
+        return value;
+    }
+
+    /**
+     * Writes a new snapshot holding the digests of an existing snapshot plus
+     * some more, merged in sorted order with duplicates dropped.
+     *
+     * @param file      The file to write, which is fsynced before returning.
+     * @param algorithm The algorithm that produced the digests.
+     * @param base      An existing snapshot of the same algorithm, or null.
+     * @param records   Further digests, back to back. Sorted in place.
+     * @param count     The number of digests in {@code records}.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(File file, FingerprintAlgorithm algorithm, DigestSnapshot base,
+                             byte[] records, int count) throws IOException {
+        if (base != null && base.algorithm != algorithm) {
+            throw new IllegalArgumentException("Cannot merge " + base.algorithm.getName()
+                    + " snapshot into " + algorithm.getName());
+        }
+        sort(records, count);
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            OutputStream out = new BufferedOutputStream(stream, 64 * 1024);
+            out.write(new byte[HEADER_LENGTH]);
+
+            byte[] current = new byte[RECORD];
+            byte[] last = null;
+            int baseCount = base == null ? 0 : base.count;
+            int i = 0;
+            int j = 0;
+            long written = 0;
+            while (i < baseCount || j < count) {
+                int cmp;
+                if (i >= baseCount) {
+                    cmp = 1;
+                } else if (j >= count) {
+                    cmp = -1;
+                } else {
+                    cmp = base.compareAt(base.headerLength + (long) i * RECORD, records, j * RECORD);
+                }
+
+                if (cmp <= 0) {
+                    base.read(i++, current);
+                    if (cmp == 0) {
+                        j++;
+                    }
+                } else {
+                    System.arraycopy(records, (j++) * RECORD, current, 0, RECORD);
+                }
+
+                if (last != null && compare(last, 0, current, 0) == 0) {
+                    continue;
+                }
+                out.write(current);
+                if (last == null) {
+                    last = new byte[RECORD];
+                }
+                System.arraycopy(current, 0, last, 0, RECORD);
+                written++;
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            // The rest of the header is reserved and left zero
+            header.putInt(MAGIC).putInt(VERSION).putLong(written).putInt(algorithm.getId()).rewind();
+            stream.getChannel().write(header, 0);
+            stream.getFD().sync();
+        }
+    }
+
+    private void read(int index, byte[] into) {
+        int base = headerLength + index * RECORD;
+        for (int i = 0; i < RECORD; i++) {
+            into[i] = buffer.get(base + i);
+        }
+    }
+
+    private static int compare(byte[] a, int aOffset, byte[] b, int bOffset) {
+        for (int i = 0; i < RECORD; i++) {
+            int x = a[aOffset + i] & 0xff;
+            int y = b[bOffset + i] & 0xff;
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return 0;
+    }
+
+    // In-place quicksort of fixed-size records, falling back to insertion sort for short runs
+    static void sort(byte[] records, int count) {
+        byte[] scratch = new byte[RECORD * 2];
+        sort(records, 0, count - 1, scratch);
+    }
+
+    private static void sort(byte[] records, int low, int high, byte[] scratch) {
+        while (high - low > 16) {
+            int mid = (low + high) >>> 1;
+            // Median of three as the pivot, parked at the end of the range
+            if (compare(records, mid * RECORD, records, low * RECORD) < 0) swap(records, mid, low, scratch);
+            if (compare(records, high * RECORD, records, low * RECORD) < 0) swap(records, high, low, scratch);
+            if (compare(records, high * RECORD, records, mid * RECORD) < 0) swap(records, high, mid, scratch);
+            swap(records, mid, high, scratch);
+            System.arraycopy(records, high * RECORD, scratch, RECORD, RECORD);
+
+            int store = low;
+            for (int i = low; i < high; i++) {
+                if (compare(records, i * RECORD, scratch, RECORD) < 0) {
+                    swap(records, i, store++, scratch);
+                }
+            }
+            swap(records, store, high, scratch);
+
+            // Recurse into the smaller side to bound stack depth
+            if (store - low < high - store) {
+                sort(records, low, store - 1, scratch);
+                low = store + 1;
+            } else {
+                sort(records, store + 1, high, scratch);
+                high = store - 1;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && compare(records, (j - 1) * RECORD, records, j * RECORD) > 0; j--) {
+                swap(records, j, j - 1, scratch);
+            }
+        }
+    }
+
+    private static void swap(byte[] records, int a, int b, byte[] scratch) {
+        if (a == b) {
+            return;
+        }
+        System.arraycopy(records, a * RECORD, scratch, 0, RECORD);
+        System.arraycopy(records, b * RECORD, records, a * RECORD, RECORD);
+        System.arraycopy(scratch, 0, records, b * RECORD, RECORD);
+    }
+}
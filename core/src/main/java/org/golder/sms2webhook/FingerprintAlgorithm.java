@@ -0,0 +1,65 @@
+package org.golder.sms2webhook;
+
+/**
+ * Hash function used to turn an encoded message into its cache key.
+ *
+ * Implementations must be safe to call from several threads at once. Keys are
+ * always {@link DigestTable#DIGEST_LENGTH} bytes; shorter hashes are padded
+ * with zeros. The id is stored in cache file headers, so it must never change.
+ */
+public interface FingerprintAlgorithm {
+
+    /** SHA-256, the default, and the only algorithm before this was configurable. */
+    FingerprintAlgorithm SHA256 = new Sha256Fingerprint();
+
+    /** MurmurHash3 x64 128-bit, much cheaper to compute and ample for de-duplication. */
+    FingerprintAlgorithm MURMUR3_128 = new Murmur3Fingerprint();
+
+    /**
+     * @return The id stored in cache file headers.
+     */
+    int getId();
+
+    /**
+     * @return The name used in settings.
+     */
+    String getName();
+
+    /**
+     * Hashes some bytes into a cache key.
+     *
+     * @param input  The bytes to hash.
+     * @param length The number of bytes to hash.
+     * @param output Buffer receiving the {@link DigestTable#DIGEST_LENGTH}-byte key.
+     */
+    void hash(byte[] input, int length, byte[] output);
+
+    /**
+     * Looks up an algorithm by its settings name, falling back to SHA-256.
+     *
+     * @param name The settings name.
+     * @return The algorithm.
+     */
+    static FingerprintAlgorithm forName(String name) {
+        if (MURMUR3_128.getName().equals(name)) {
+            return MURMUR3_128;
+        }
+        return SHA256;
+    }
+
+    /**
+     * Looks up an algorithm by its header id.
+     *
+     * @param id The header id.
+     * @return The algorithm, or null if the id is unknown.
+     */
+    static FingerprintAlgorithm forId(int id) {
+        if (id == SHA256.getId()) {
+            return SHA256;
+        }
+        if (id == MURMUR3_128.getId()) {
+            return MURMUR3_128;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,195 @@
+package org.golder.sms2webhook;
+
+/**
+ * Computes message cache keys without allocating per message.
+ *
+ * The key is the hash of the decimal date, the address and the body
+ * concatenated as UTF-8, i.e. exactly what hashing the joined strings gives,
+ * so existing SHA-256 caches stay valid. Each thread gets its own instance
+ * holding reusable encoding and result buffers; the fields are encoded straight
+ * into the buffer and passed to the {@link FingerprintAlgorithm}, with no
+ * intermediate strings.
+ */
+public final class MessageFingerprinter {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageFingerprinter> instances = new ThreadLocal<MessageFingerprinter>() {
+        @Override
+        protected MessageFingerprinter initialValue() {
+            return new MessageFingerprinter();
+        }
+    };
+
+    // One result buffer per algorithm id, so keys from two algorithms can be held at once
+    private final byte[][] results = new byte[3][DigestTable.DIGEST_LENGTH];
+    private byte[] buffer = new byte[256];
+    private int length;
+    private char pendingHigh;
+    private char[] scratch = new char[256];
+
+    private MessageFingerprinter() {
+    }
+
+    /**
+     * Returns this thread's fingerprinter.
+     *
+     * @return The fingerprinter.
+     */
+    public static MessageFingerprinter get() {
+        return instances.get();
+    }
+
+    /**
+     * Computes the cache key of a message.
+     *
+     * @param algorithm The hash function.
+     * @param date    The message date.
+     * @param address The sender address.
+     * @param body    The message body.
+     * @return The 32-byte digest, in a buffer that is overwritten by the next call on this
+     *         thread with the same algorithm.
+     */
+    public byte[] fingerprint(FingerprintAlgorithm algorithm, long date, CharSequence address, CharSequence body) {
+        length = 0;
+        pendingHigh = 0;
+        appendDecimal(date);
+        appendUtf8(address);
+        appendUtf8(body);
+        return finish(algorithm);
+    }
+
+    /**
+     * Computes the cache key of a message whose text fields are held in char arrays,
+     * e.g. as filled by {@link android.database.Cursor#copyStringToBuffer}.
+     *
+     * @param algorithm     The hash function.
+     * @param date          The message date.
+     * @param address       The sender address characters.
+     * @param addressLength The number of address characters.
+     * @param body          The message body characters.
+     * @param bodyLength    The number of body characters.
+     * @return The 32-byte digest, in a buffer that is overwritten by the next call on this
+     *         thread with the same algorithm.
+     */
+    public byte[] fingerprint(FingerprintAlgorithm algorithm, long date, char[] address, int addressLength, char[] body, int bodyLength) {
+        length = 0;
+        pendingHigh = 0;
+        appendDecimal(date);
+        appendUtf8(address, addressLength);
+        appendUtf8(body, bodyLength);
+        return finish(algorithm);
+    }
+
+    private byte[] finish(FingerprintAlgorithm algorithm) {
+        if (pendingHigh != 0) {
+            ensureCapacity(1);
+            buffer[length++] = '?';
+        }
+        byte[] result = results[algorithm.getId()];
+        algorithm.hash(buffer, length, result);
+        return result;
+    }
+
+    /**
+     * Hex encodes a digest, as used for cache keys in the outbox and in logs.
+     *
+     * @param digest The 32-byte digest.
+     * @return The lower-case hex string.
+     */
+    public static String toHex(byte[] digest) {
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            int b = digest[i] & 0xff;
+            chars[i * 2] = HEX_DIGITS[b >>> 4];
+            chars[i * 2 + 1] = HEX_DIGITS[b & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    // Appends a long as String.valueOf() would write it
+    private void appendDecimal(long value) {
+        ensureCapacity(20);
+        if (value == Long.MIN_VALUE) {
+            appendUtf8("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        do {
+            buffer[length++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        // Digits were written least significant first
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+    }
+
+    // Appends text as String.getBytes(UTF_8) would encode it, lone surrogates becoming '?'.
+    // A high surrogate ending one field may pair with a low surrogate starting the next,
+    // just as it would in the joined string, so it is held back until then.
+    private void appendUtf8(CharSequence text) {
+        if (text == null) {
+            return;
+        }
+        int n = text.length();
+        if (n > scratch.length) {
+            scratch = new char[Math.max(scratch.length * 2, n)];
+        }
+        for (int i = 0; i < n; i++) {
+            scratch[i] = text.charAt(i);
+        }
+        appendUtf8(scratch, n);
+    }
+
+    private void appendUtf8(char[] text, int n) {
+        ensureCapacity(n * 3 + 4);
+        for (int i = 0; i < n; i++) {
+            char c = text[i];
+            if (pendingHigh != 0) {
+                char high = pendingHigh;
+                pendingHigh = 0;
+                if (Character.isLowSurrogate(c)) {
+                    appendCodePoint(Character.toCodePoint(high, c));
+                    continue;
+                }
+                buffer[length++] = '?';
+            }
+            if (c < 0x80) {
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[length++] = (byte) (0xc0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                pendingHigh = c;
+            } else if (Character.isLowSurrogate(c)) {
+                buffer[length++] = '?';
+            } else {
+                buffer[length++] = (byte) (0xe0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void appendCodePoint(int cp) {
+        buffer[length++] = (byte) (0xf0 | (cp >> 18));
+        buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+        buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+}
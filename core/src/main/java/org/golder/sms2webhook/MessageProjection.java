@@ -0,0 +1,289 @@
+package org.golder.sms2webhook;
+
+import android.content.ContentResolver;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.util.Log;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The inbox columns fetched by a scan and forwarded to the webhook.
+ *
+ * By default every column the provider has is forwarded. Once optional fields
+ * are chosen in the settings, only those and the columns needed for the cache
+ * key are queried, so the provider copies less into each CursorWindow. Column
+ * indices and types are resolved once per cursor with {@link #bind(Cursor)};
+ * writing a row then reads each column with a typed getter straight into a
+ * {@link PayloadWriter}, without looking up or comparing column names.
+ */
+class MessageProjection {
+
+    // Setting holding the optional columns to forward
+    static final String PREF_PAYLOAD_FIELDS = "payload_fields";
+
+    // Columns always fetched and forwarded, since the cache key is built from them
+    static final String[] KEY_COLUMNS = {"_id", "address", "date", "date_sent", "body"};
+
+    // Columns that can be chosen in the settings; until some are, every column the provider has is forwarded
+    static final String[] OPTIONAL_COLUMNS = {"thread_id", "person", "protocol", "read", "status", "type",
+            "reply_path_present", "subject", "service_center", "locked", "sub_id", "error_code", "creator", "seen"};
+
+    // Columns sent as JSON numbers; everything else is sent as a string, as the provider returns it
+    private static final Set<String> NUMERIC_COLUMNS = new HashSet<>(Arrays.asList("date", "date_sent"));
+
+    private static final String TAG = "projection";
+
+    // The last projection resolved from the provider, and the payload_fields setting it was resolved for.
+    // Only its columns and fields are reused, as bind() state belongs to each instance.
+    private static final Object cacheLock = new Object();
+    private static MessageProjection cached;
+    private static Set<String> cachedChoice;
+
+    // Columns to query, or null to query them all
+    private final String[] columns;
+
+    // Whether to forward whatever columns each cursor has, as the provider's columns could not be listed
+    private final boolean cursorColumns;
+
+    // Columns to forward, in payload order
+    private String[] fields;
+    private boolean[] numeric;
+
+    // Cursor positions of the fields, resolved by bind()
+    private int[] indices;
+
+    private MessageProjection(String[] columns, String[] fields) {
+        this.columns = columns;
+        this.cursorColumns = fields == null;
+        setFields(fields == null ? new String[0] : fields);
+    }
+
+    private void setFields(String[] fields) {
+        this.fields = fields;
+        this.numeric = new boolean[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            numeric[i] = NUMERIC_COLUMNS.contains(fields[i]);
+        }
+        this.indices = new int[fields.length];
+        Arrays.fill(indices, -1);
+    }
+
+    /**
+     * Builds the projection for an inbox scan from the settings, leaving out
+     * columns this device's SMS provider does not have. The provider's columns
+     * are looked up once and reused until the payload_fields setting changes.
+     *
+     * @param resolver Resolver used to discover the provider's columns.
+     * @param uri      The URI that will be queried.
+     * @param prefs    The app's settings.
+     * @return The projection.
+     */
+    static MessageProjection forSettings(ContentResolver resolver, Uri uri, SharedPreferences prefs) {
+        Set<String> choice = prefs.getStringSet(PREF_PAYLOAD_FIELDS, null);
+        choice = choice == null ? null : new HashSet<>(choice);
+        synchronized (cacheLock) {
+            if (cached != null && (choice == null ? cachedChoice == null : choice.equals(cachedChoice))) {
+                return new MessageProjection(cached.columns, cached.fields);
+            }
+        }
+        MessageProjection projection = resolve(resolver, uri, prefs, choice != null);
+        if (projection != null) {
+            synchronized (cacheLock) {
+                cached = projection;
+                cachedChoice = choice;
+            }
+            return new MessageProjection(projection.columns, projection.fields);
+        }
+
+        // Fall back to fetching everything; bind() skips whatever is missing. Not cached, so the next call retries.
+        Log.w(TAG, "Unable to list SMS provider columns, fetching all of them");
+        return new MessageProjection(null, choice != null ? chosenFields(prefs).toArray(new String[0]) : null);
+    }
+
+    // Looks up the provider's columns, returning null if it cannot be queried
+    private static MessageProjection resolve(ContentResolver resolver, Uri uri, SharedPreferences prefs,
+                                             boolean chosen) {
+        // Asking for a column the provider lacks fails the whole query, so check first. The selection
+        // matches no rows, so only the column names come back, whatever the provider does with limits.
+        String[] available = null;
+        Cursor probe = resolver.query(uri, null, "_id < 0", null, null);
+        if (probe != null) {
+            try {
+                available = probe.getColumnNames();
+            } finally {
+                probe.close();
+            }
+        }
+        if (available == null) {
+            return null;
+        }
+        if (!chosen) {
+            return new MessageProjection(null, available);
+        }
+        List<String> fields = chosenFields(prefs);
+        fields.retainAll(new HashSet<>(Arrays.asList(available)));
+        String[] columns = fields.toArray(new String[0]);
+        return new MessageProjection(columns, columns);
+    }
+
+    /**
+     * Builds the projection for importing a backup file from the settings.
+     * Backups name their attributes after the inbox columns; any the file
+     * lacks are left out of the payload, as null columns are.
+     *
+     * @param prefs The app's settings.
+     * @return The projection.
+     */
+    static MessageProjection forBackup(SharedPreferences prefs) {
+        String[] columns = chosenFields(prefs).toArray(new String[0]);
+        return new MessageProjection(columns, columns);
+    }
+
+    /**
+     * Queries the messages after a given _id, in _id order, at most
+     * {@code limit} of them. The limit goes in the sort order, which the SMS
+     * provider hands to SQLite as it is; ContentResolver.QUERY_ARG_LIMIT is
+     * dropped by providers that only implement the String-based query, as
+     * the SMS provider does. Should a provider reject the limit, the query is
+     * repeated without one, so callers must stop reading after {@code limit}
+     * rows.
+     *
+     * @param resolver The resolver.
+     * @param uri      The URI to query.
+     * @param columns  The columns to fetch, or null for all of them.
+     * @param after    Only messages with a higher _id are returned.
+     * @param limit    The page size.
+     * @return The cursor, or null if the provider is unavailable.
+     */
+    static Cursor queryPage(ContentResolver resolver, Uri uri, String[] columns, long after, int limit) {
+        String[] selectionArgs = {String.valueOf(after)};
+        try {
+            return resolver.query(uri, columns, "_id > ?", selectionArgs, "_id ASC LIMIT " + limit);
+        } catch (IllegalArgumentException | SQLiteException e) {
+            Log.w(TAG, "SMS provider rejected a limited query, reading without a limit: " + e);
+            return resolver.query(uri, columns, "_id > ?", selectionArgs, "_id ASC");
+        }
+    }
+
+    private static List<String> chosenFields(SharedPreferences prefs) {
+        Set<String> chosen = prefs == null ? null : prefs.getStringSet(PREF_PAYLOAD_FIELDS, null);
+        List<String> fields = new ArrayList<>(Arrays.asList(KEY_COLUMNS));
+        for (String column : OPTIONAL_COLUMNS) {
+            if (chosen == null || chosen.contains(column)) {
+                fields.add(column);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Builds a projection over the given columns, without consulting the
+     * settings or the provider.
+     *
+     * @param columns The columns to query and forward, in payload order.
+     * @return The projection.
+     */
+    static MessageProjection forColumns(String... columns) {
+        return new MessageProjection(columns.clone(), columns.clone());
+    }
+
+    /**
+     * @return The columns to pass to the query, or null for all of them.
+     */
+    String[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * Resolves the column positions of a cursor over this projection. Must be
+     * called before encoding rows from a new cursor.
+     *
+     * @param cursor The cursor.
+     */
+    void bind(Cursor cursor) {
+        if (cursorColumns) {
+            setFields(cursor.getColumnNames());
+        }
+        for (int i = 0; i < fields.length; i++) {
+            indices[i] = cursor.getColumnIndex(fields[i]);
+        }
+    }
+
+    /**
+     * Reads a message element of a backup file, e.g. {@code <sms address="..." date="..." ... />},
+     * into a row of this projection's columns, ready for a {@code MatrixCursor}.
+     * Missing attributes and those set to "null" give null columns, as do
+     * numeric columns that do not parse.
+     *
+     * @param parser Parser positioned on the element's start tag.
+     * @param row    Receives the values, one per column.
+     */
+    void readAttributes(XmlPullParser parser, Object[] row) {
+        for (int i = 0; i < fields.length; i++) {
+            String value = parser.getAttributeValue(null, fields[i]);
+            if (value == null || "null".equals(value)) {
+                row[i] = null;
+            } else if (numeric[i]) {
+                try {
+                    row[i] = Long.parseLong(value.trim());
+                } catch (NumberFormatException nfe) {
+                    row[i] = null;
+                }
+            } else {
+                row[i] = value;
+            }
+        }
+    }
+
+    /**
+     * Writes a message that is not in the inbox yet as a payload, with the
+     * fields and types a scan of the inbox would send for it. Fields without
+     * a value are left out, as null columns are.
+     *
+     * @param values Column values by name.
+     * @param writer The writer, which holds the payload on return.
+     */
+    void write(Map<String, Object> values, PayloadWriter writer) {
+        // Without the provider's columns, fall back to every column a scan could choose
+        String[] names = cursorColumns ? chosenFields(null).toArray(new String[0]) : fields;
+        writer.beginObject();
+        for (String name : names) {
+            Object value = values.get(name);
+            if (value == null) {
+                continue;
+            }
+            if (NUMERIC_COLUMNS.contains(name)) {
+                writer.field(name, ((Number) value).longValue());
+            } else {
+                writer.field(name, value.toString());
+            }
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Writes the row under the cursor as a payload. Null columns are left out.
+     *
+     * @param cursor The cursor last passed to {@link #bind(Cursor)}.
+     * @param writer The writer, which holds the payload on return.
+     */
+    void write(Cursor cursor, PayloadWriter writer) {
+        writer.beginObject();
+        for (int i = 0; i < fields.length; i++) {
+            if (indices[i] >= 0) {
+                writer.field(fields[i], cursor, indices[i], numeric[i]);
+            }
+        }
+        writer.endObject();
+    }
+}
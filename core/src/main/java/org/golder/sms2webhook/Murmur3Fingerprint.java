@@ -0,0 +1,123 @@
+package org.golder.sms2webhook;
+
+/**
+ * MurmurHash3 x64 128-bit cache keys (seed 0). The 16-byte hash fills the
+ * first half of the key and the rest is zero.
+ */
+class Murmur3Fingerprint implements FingerprintAlgorithm {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    @Override
+    public int getId() {
+        return 2;
+    }
+
+    @Override
+    public String getName() {
+        return "murmur3_128";
+    }
+
+    @Override
+    public void hash(byte[] input, int length, byte[] output) {
+        long h1 = 0;
+        long h2 = 0;
+
+        int blocks = length >>> 4;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLongLittleEndian(input, i << 4);
+            long k2 = getLongLittleEndian(input, (i << 4) + 8);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // Tail
+        int tail = blocks << 4;
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 15) {
+            case 15: k2 ^= (long) (input[tail + 14] & 0xff) << 48;
+            case 14: k2 ^= (long) (input[tail + 13] & 0xff) << 40;
+            case 13: k2 ^= (long) (input[tail + 12] & 0xff) << 32;
+            case 12: k2 ^= (long) (input[tail + 11] & 0xff) << 24;
+            case 11: k2 ^= (long) (input[tail + 10] & 0xff) << 16;
+            case 10: k2 ^= (long) (input[tail + 9] & 0xff) << 8;
+            case 9:
+                k2 ^= (long) (input[tail + 8] & 0xff);
+                k2 *= C2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= C1;
+                h2 ^= k2;
+            case 8: k1 ^= (long) (input[tail + 7] & 0xff) << 56;
+            case 7: k1 ^= (long) (input[tail + 6] & 0xff) << 48;
+            case 6: k1 ^= (long) (input[tail + 5] & 0xff) << 40;
+            case 5: k1 ^= (long) (input[tail + 4] & 0xff) << 32;
+            case 4: k1 ^= (long) (input[tail + 3] & 0xff) << 24;
+            case 3: k1 ^= (long) (input[tail + 2] & 0xff) << 16;
+            case 2: k1 ^= (long) (input[tail + 1] & 0xff) << 8;
+            case 1:
+                k1 ^= (long) (input[tail] & 0xff);
+                k1 *= C1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= C2;
+                h1 ^= k1;
+            default:
+                break;
+        }
+
+        // Finalization
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        putLongBigEndian(output, 0, h1);
+        putLongBigEndian(output, 8, h2);
+        for (int i = 16; i < DigestTable.DIGEST_LENGTH; i++) {
+            output[i] = 0;
+        }
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLongLittleEndian(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xffL);
+        }
+        return value;
+    }
+
+    private static void putLongBigEndian(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
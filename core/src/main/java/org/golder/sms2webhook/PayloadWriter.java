@@ -0,0 +1,233 @@
+package org.golder.sms2webhook;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes webhook payloads as UTF-8 JSON straight into a reusable buffer.
+ *
+ * Fields are written as they are read, from plain values or directly from a
+ * cursor, without building an intermediate JSON object, string or map. Each
+ * instance is reused for payload after payload; {@link #toByteArray()} copies
+ * out the finished payload. Instances are not thread safe.
+ */
+class PayloadWriter {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buffer = new byte[512];
+    private int length;
+    private boolean firstField;
+
+    // Reused for reading text columns without creating strings
+    private final CharArrayBuffer chars = new CharArrayBuffer(256);
+
+    /**
+     * Starts a new payload, discarding any previous one.
+     *
+     * @return This writer.
+     */
+    PayloadWriter beginObject() {
+        length = 0;
+        firstField = true;
+        append('{');
+        return this;
+    }
+
+    /**
+     * Finishes the payload.
+     *
+     * @return This writer.
+     */
+    PayloadWriter endObject() {
+        append('}');
+        return this;
+    }
+
+    /**
+     * Writes a numeric field.
+     *
+     * @param name  The field name.
+     * @param value The value.
+     * @return This writer.
+     */
+    PayloadWriter field(String name, long value) {
+        name(name);
+        appendDecimal(value);
+        return this;
+    }
+
+    /**
+     * Writes a string field, or nothing if the value is null.
+     *
+     * @param name  The field name.
+     * @param value The value, or null.
+     * @return This writer.
+     */
+    PayloadWriter field(String name, CharSequence value) {
+        if (value == null) {
+            return this;
+        }
+        name(name);
+        append('"');
+        int count = value.length();
+        for (int i = 0; i < count; i++) {
+            i = appendEscaped(value.charAt(i), i + 1 < count ? value.charAt(i + 1) : 0, i);
+        }
+        append('"');
+        return this;
+    }
+
+    /**
+     * Writes a column of the row under a cursor, or nothing if it is null.
+     *
+     * @param name    The field name.
+     * @param cursor  The cursor.
+     * @param index   The column index.
+     * @param numeric Whether to write the column as a number rather than a string.
+     * @return This writer.
+     */
+    PayloadWriter field(String name, Cursor cursor, int index, boolean numeric) {
+        if (cursor.isNull(index)) {
+            return this;
+        }
+        if (numeric) {
+            return field(name, cursor.getLong(index));
+        }
+        cursor.copyStringToBuffer(index, chars);
+        name(name);
+        append('"');
+        char[] data = chars.data;
+        int count = chars.sizeCopied;
+        for (int i = 0; i < count; i++) {
+            i = appendEscaped(data[i], i + 1 < count ? data[i + 1] : 0, i);
+        }
+        append('"');
+        return this;
+    }
+
+    /**
+     * @return A copy of the payload written so far.
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void name(String name) {
+        if (!firstField) {
+            append(',');
+        }
+        firstField = false;
+        append('"');
+        for (int i = 0; i < name.length(); i++) {
+            append(name.charAt(i));
+        }
+        append('"');
+        append(':');
+    }
+
+    // Writes one char of a string value, escaped and UTF-8 encoded, returning the index of the last char used
+    private int appendEscaped(char c, char next, int index) {
+        switch (c) {
+            case '"':
+                return appendEscape('"', index);
+            case '\\':
+                return appendEscape('\\', index);
+            case '\b':
+                return appendEscape('b', index);
+            case '\f':
+                return appendEscape('f', index);
+            case '\n':
+                return appendEscape('n', index);
+            case '\r':
+                return appendEscape('r', index);
+            case '\t':
+                return appendEscape('t', index);
+            default:
+                break;
+        }
+        // Line and paragraph separators too, since JavaScript strings cannot hold them raw
+        if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+            ensureCapacity(6);
+            buffer[length++] = '\\';
+            buffer[length++] = 'u';
+            buffer[length++] = HEX[(c >> 12) & 0xf];
+            buffer[length++] = HEX[(c >> 8) & 0xf];
+            buffer[length++] = HEX[(c >> 4) & 0xf];
+            buffer[length++] = HEX[c & 0xf];
+        } else if (c < 0x80) {
+            append(c);
+        } else if (c < 0x800) {
+            ensureCapacity(2);
+            buffer[length++] = (byte) (0xc0 | (c >> 6));
+            buffer[length++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && Character.isLowSurrogate(next)) {
+            int codePoint = Character.toCodePoint(c, next);
+            ensureCapacity(4);
+            buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+            buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            return index + 1;
+        } else if (Character.isSurrogate(c)) {
+            // Unpaired surrogates cannot be encoded, as String.getBytes() also finds
+            append('?');
+        } else {
+            ensureCapacity(3);
+            buffer[length++] = (byte) (0xe0 | (c >> 12));
+            buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buffer[length++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return index;
+    }
+
+    private int appendEscape(char c, int index) {
+        append('\\');
+        append(c);
+        return index;
+    }
+
+    private void appendDecimal(long value) {
+        if (value == Long.MIN_VALUE) {
+            String text = Long.toString(value);
+            for (int i = 0; i < text.length(); i++) {
+                append(text.charAt(i));
+            }
+            return;
+        }
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    // Appends an ASCII char
+    private void append(char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.golder.sms2webhook;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 cache keys, computed with one reusable digest per thread.
+ */
+class Sha256Fingerprint implements FingerprintAlgorithm {
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException nsae) {
+                // Every Java platform is required to provide SHA-256
+                throw new IllegalStateException(nsae);
+            }
+        }
+    };
+
+    @Override
+    public int getId() {
+        return 1;
+    }
+
+    @Override
+    public String getName() {
+        return "sha256";
+    }
+
+    @Override
+    public void hash(byte[] input, int length, byte[] output) {
+        MessageDigest digest = digests.get();
+        digest.update(input, 0, length);
+        try {
+            digest.digest(output, 0, DigestTable.DIGEST_LENGTH);
+        } catch (DigestException de) {
+            throw new IllegalStateException(de);
+        }
+    }
+}